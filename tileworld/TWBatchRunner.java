@@ -0,0 +1,227 @@
+package tileworld;
+
+import ec.util.MersenneTwisterFast;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * TWBatchRunner
+ *
+ * Description:
+ *
+ * Runs independent headless replications of one configuration on a fixed
+ * pool of threads, one TWEnvironment per replication. Replication seeds are
+ * drawn from a MersenneTwisterFast seeded with the master seed, so the same
+ * master seed always gives the same seeds and rewards, whatever the number
+ * of threads.
+ *
+ * Agents print their actions to System.out, which is silenced while the
+ * batch runs; the summary is printed to the original stream.
+ */
+public class TWBatchRunner {
+
+    /**
+     * Two sided 95% critical values of Student's t, index = degrees of
+     * freedom (1..30), larger samples use the normal value.
+     */
+    private static final double[] T95 = {Double.NaN,
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+        2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+    private static final double Z95 = 1.960;
+
+    private final TWConfiguration config;
+    private final int replications;
+    private final long masterSeed;
+    private final int threads;
+
+    /**
+     * @param config configuration of every replication
+     * @param replications number of replications
+     * @param masterSeed seed of the replication seeds
+     * @param threads number of worker threads, 0 for one per core
+     */
+    public TWBatchRunner(TWConfiguration config, int replications, long masterSeed, int threads) {
+        if (replications < 1) {
+            throw new IllegalArgumentException("replications must be positive: " + replications);
+        }
+        this.config = config;
+        this.replications = replications;
+        this.masterSeed = masterSeed;
+        this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the seed of each replication, derived from the master seed
+     */
+    public long[] seeds() {
+        MersenneTwisterFast random = new MersenneTwisterFast(masterSeed);
+        long[] seeds = new long[replications];
+        for (int i = 0; i < replications; i++) {
+            seeds[i] = random.nextLong();
+        }
+        return seeds;
+    }
+
+    /**
+     * Runs all replications and waits for them to finish.
+     *
+     * @return the results, in seed order
+     */
+    public Result run() throws InterruptedException, ExecutionException {
+        final long[] seeds = seeds();
+        List<Callable<Replication>> jobs = new ArrayList<Callable<Replication>>(replications);
+        for (final long seed : seeds) {
+            jobs.add(new Callable<Replication>() {
+                @Override
+                public Replication call() {
+                    return runReplication(seed);
+                }
+            });
+        }
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, replications));
+        try {
+            long start = System.nanoTime();
+            List<Future<Replication>> futures = executor.invokeAll(jobs);
+            Replication[] results = new Replication[replications];
+            for (int i = 0; i < replications; i++) {
+                results[i] = futures.get(i).get();
+            }
+            return new Result(results, System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+            System.setOut(out);
+        }
+    }
+
+    private Replication runReplication(long seed) {
+        TWEnvironment tw = new TWEnvironment(seed, config);
+        tw.start();
+        long steps = 0;
+        while (steps < config.getEndTime()) {
+            if (!tw.schedule.step(tw)) {
+                break;
+            }
+            steps = tw.schedule.getSteps();
+        }
+        tw.finish();
+        return new Replication(seed, tw.getReward(), steps);
+    }
+
+    /**
+     * Outcome of one replication.
+     */
+    public static class Replication {
+
+        public final long seed;
+        public final int reward;
+        public final long steps;
+
+        Replication(long seed, int reward, long steps) {
+            this.seed = seed;
+            this.reward = reward;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * Outcome of a batch, reward statistics and throughput.
+     */
+    public static class Result {
+
+        private final Replication[] replications;
+        private final long nanos;
+
+        Result(Replication[] replications, long nanos) {
+            this.replications = replications;
+            this.nanos = nanos;
+        }
+
+        public Replication[] getReplications() {
+            return replications;
+        }
+
+        public double meanReward() {
+            double sum = 0;
+            for (Replication r : replications) {
+                sum += r.reward;
+            }
+            return sum / replications.length;
+        }
+
+        /**
+         * @return sample standard deviation of the reward, 0 for a single
+         * replication
+         */
+        public double stdReward() {
+            int n = replications.length;
+            if (n < 2) {
+                return 0;
+            }
+            double mean = meanReward();
+            double sum = 0;
+            for (Replication r : replications) {
+                sum += (r.reward - mean) * (r.reward - mean);
+            }
+            return Math.sqrt(sum / (n - 1));
+        }
+
+        /**
+         * @return half width of the 95% confidence interval of the mean
+         * reward, NaN for a single replication
+         */
+        public double confidence95() {
+            int n = replications.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double t = (n - 1 < T95.length) ? T95[n - 1] : Z95;
+            return t * stdReward() / Math.sqrt(n);
+        }
+
+        public long totalSteps() {
+            long steps = 0;
+            for (Replication r : replications) {
+                steps += r.steps;
+            }
+            return steps;
+        }
+
+        public double seconds() {
+            return nanos / 1e9;
+        }
+
+        /**
+         * @return simulation steps completed per wall clock second, summed
+         * over all replications
+         */
+        public double stepsPerSecond() {
+            return totalSteps() / seconds();
+        }
+
+        public void print(PrintStream out) {
+            for (Replication r : replications) {
+                out.println("Seed: " + r.seed + " reward: " + r.reward);
+            }
+            out.printf("Replications: %d%n", replications.length);
+            out.printf("Reward: mean %.3f, std %.3f, 95%% CI %.3f +/- %.3f%n",
+                    meanReward(), stdReward(), meanReward(), confidence95());
+            out.printf("Time: %.2f s, %.0f steps/s%n", seconds(), stepsPerSecond());
+        }
+    }
+}
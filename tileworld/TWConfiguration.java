@@ -0,0 +1,416 @@
+package tileworld;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * TWConfiguration
+ *
+ * Description:
+ *
+ * The parameters of one simulation. Unlike Parameters, which are compile time
+ * constants, a configuration is an immutable object handed to a TWEnvironment,
+ * so several differently sized simulations can run in the same JVM.
+ *
+ * Values are named after the fields of Parameters and can be given in a
+ * properties file or on the command line, anything not given takes its
+ * value from a profile (the "default" profile is Parameters):
+ *
+ * java tileworld.TileworldMain -profile large -agentCount 64 -config my.properties
+ *
+ * Profiles:
+ *
+ * default    Parameters, 50x50, 2 agents
+ * dense      Parameters2, 80x80 with ten times the object creation rate
+ * large      1000x1000, 16 agents, object density as in default
+ * huge       2000x2000, 64 agents, object density as in default
+ * longrange  large with a sensor range of 25, ranges of 10 to 50 can be
+ *            set with -defaultSensorRange
+ *
+ * agentThreads selects how agents are stepped: 0 (the default) steps each
+ * agent in turn, sensing then thinking and acting, as scheduled MASON
+ * steppables. n > 0 steps them in phases, all sense on n threads, then all
+ * think on n threads, then all act on one thread, in an order shuffled
+ * every step as the schedule shuffles them in mode 0. Phased runs give the
+ * same result for any n, but not the same as 0, as agents think before
+ * seeing what the others did that step.
+ *
+ * planner selects how DefaultTWPlanner picks its goal: astar (the default)
+ * goes for the remembered tile or hole nearest as the crow flies (Manhattan)
+ * and searches a path to it with A*, field floods the agent's memory once
+ * (TWDistanceField) and goes for the one nearest by path.
+ */
+public final class TWConfiguration {
+
+    public static final String PROFILE = "profile";
+    public static final String SEED = "seed";
+    public static final String END_TIME = "endTime";
+    public static final String FUEL_LEVEL = "defaultFuelLevel";
+    public static final String SENSOR_RANGE = "defaultSensorRange";
+    public static final String AGENT_COUNT = "agentCount";
+    public static final String X_DIMENSION = "xDimension";
+    public static final String Y_DIMENSION = "yDimension";
+    public static final String TILE_MEAN = "tileMean";
+    public static final String HOLE_MEAN = "holeMean";
+    public static final String OBSTACLE_MEAN = "obstacleMean";
+    public static final String TILE_DEV = "tileDev";
+    public static final String HOLE_DEV = "holeDev";
+    public static final String OBSTACLE_DEV = "obstacleDev";
+    public static final String LIFE_TIME = "lifeTime";
+    public static final String AGENT_THREADS = "agentThreads";
+    public static final String PLANNER = "planner";
+
+    /** Planner choices, see getPlanner() */
+    public static final String PLANNER_ASTAR = "astar";
+    public static final String PLANNER_FIELD = "field";
+
+    private static final String[] KEYS = {SEED, END_TIME, FUEL_LEVEL, SENSOR_RANGE,
+        AGENT_COUNT, X_DIMENSION, Y_DIMENSION, TILE_MEAN, HOLE_MEAN, OBSTACLE_MEAN,
+        TILE_DEV, HOLE_DEV, OBSTACLE_DEV, LIFE_TIME, AGENT_THREADS, PLANNER};
+
+    private static final TWConfiguration DEFAULT = new TWConfiguration(
+            Parameters.seed, Parameters.endTime, Parameters.defaultFuelLevel,
+            Parameters.defaultSensorRange, 2, Parameters.xDimension, Parameters.yDimension,
+            Parameters.tileMean, Parameters.holeMean, Parameters.obstacleMean,
+            Parameters.tileDev, Parameters.holeDev, Parameters.obstacleDev,
+            Parameters.lifeTime, 0, PLANNER_ASTAR);
+
+    private final long seed;
+    private final long endTime;
+    private final int defaultFuelLevel;
+    private final int defaultSensorRange;
+    private final int agentCount;
+    private final int xDimension;
+    private final int yDimension;
+    private final double tileMean;
+    private final double holeMean;
+    private final double obstacleMean;
+    private final double tileDev;
+    private final double holeDev;
+    private final double obstacleDev;
+    private final int lifeTime;
+    private final int agentThreads;
+    private final String planner;
+
+    private TWConfiguration(long seed, long endTime, int defaultFuelLevel,
+            int defaultSensorRange, int agentCount, int xDimension, int yDimension,
+            double tileMean, double holeMean, double obstacleMean,
+            double tileDev, double holeDev, double obstacleDev, int lifeTime, int agentThreads,
+            String planner) {
+        this.seed = seed;
+        this.endTime = endTime;
+        this.defaultFuelLevel = defaultFuelLevel;
+        this.defaultSensorRange = defaultSensorRange;
+        this.agentCount = agentCount;
+        this.xDimension = xDimension;
+        this.yDimension = yDimension;
+        this.tileMean = tileMean;
+        this.holeMean = holeMean;
+        this.obstacleMean = obstacleMean;
+        this.tileDev = tileDev;
+        this.holeDev = holeDev;
+        this.obstacleDev = obstacleDev;
+        this.lifeTime = lifeTime;
+        this.agentThreads = agentThreads;
+        this.planner = planner;
+        validate();
+    }
+
+    /**
+     * @return the configuration matching Parameters
+     */
+    public static TWConfiguration defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param name one of default, dense, large, huge or longrange
+     * @return the named profile
+     * @throws IllegalArgumentException if there is no such profile
+     */
+    public static TWConfiguration profile(String name) {
+        if (name.equals("default")) {
+            return DEFAULT;
+        } else if (name.equals("dense")) {
+            return new TWConfiguration(Parameters2.seed, Parameters2.endTime,
+                    Parameters2.defaultFuelLevel, Parameters2.defaultSensorRange, 2,
+                    Parameters2.xDimension, Parameters2.yDimension,
+                    Parameters2.tileMean, Parameters2.holeMean, Parameters2.obstacleMean,
+                    Parameters2.tileDev, Parameters2.holeDev, Parameters2.obstacleDev,
+                    Parameters2.lifeTime, 0, PLANNER_ASTAR);
+        } else if (name.equals("large")) {
+            return scaled(1000, 16);
+        } else if (name.equals("huge")) {
+            return scaled(2000, 64);
+        } else if (name.equals("longrange")) {
+            return scaled(1000, 16).with(SENSOR_RANGE, "25");
+        }
+        throw new IllegalArgumentException("Unknown profile: " + name);
+    }
+
+    /**
+     * The default profile on a size x size grid, with creation rates scaled
+     * to keep the same object density and fuel scaled to the grid side. The
+     * grid is taken as area copies of the default one creating objects
+     * independently, so the deviations of the rates scale with the square
+     * root of the area.
+     */
+    private static TWConfiguration scaled(int size, int agents) {
+        double area = (double) size * size / (DEFAULT.xDimension * DEFAULT.yDimension);
+        double side = (double) size / DEFAULT.xDimension;
+        double spread = Math.sqrt(area);
+        return new TWConfiguration(DEFAULT.seed, DEFAULT.endTime,
+                (int) (DEFAULT.defaultFuelLevel * side), DEFAULT.defaultSensorRange, agents,
+                size, size,
+                DEFAULT.tileMean * area, DEFAULT.holeMean * area, DEFAULT.obstacleMean * area,
+                DEFAULT.tileDev * spread, DEFAULT.holeDev * spread, DEFAULT.obstacleDev * spread,
+                DEFAULT.lifeTime, DEFAULT.agentThreads, DEFAULT.planner);
+    }
+
+    /**
+     * Builds a configuration from properties named as the fields of
+     * Parameters. The base is the profile named by the "profile" property, or
+     * default.
+     *
+     * @throws IllegalArgumentException if a value is malformed or out of range
+     */
+    public static TWConfiguration fromProperties(Properties properties) {
+        TWConfiguration base = profile(properties.getProperty(PROFILE, "default"));
+        return base.with(properties);
+    }
+
+    /**
+     * Loads a configuration from a properties file.
+     *
+     * @see TWConfiguration#fromProperties(java.util.Properties)
+     */
+    public static TWConfiguration load(String file) throws IOException {
+        return fromProperties(readProperties(file));
+    }
+
+    /**
+     * Builds a configuration from command line arguments. Understands
+     * "-profile name", "-config file" and "-key value" for every key of the
+     * configuration. Values from the file override the profile and single
+     * values override both. Other arguments are ignored so that they can be
+     * passed on, e.g., to SimState.doLoop.
+     *
+     * @throws IllegalArgumentException if a value is malformed or out of range
+     * @throws IOException if a configuration file cannot be read
+     */
+    public static TWConfiguration fromArgs(String[] args) throws IOException {
+        String profile = null;
+        String file = null;
+        Properties overrides = new Properties();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (!args[i].startsWith("-")) {
+                continue;
+            }
+            String key = args[i].substring(1);
+            if (key.equals(PROFILE)) {
+                profile = args[++i];
+            } else if (key.equals("config")) {
+                file = args[++i];
+            } else if (isKey(key)) {
+                overrides.setProperty(key, args[++i]);
+            }
+        }
+        Properties properties = (file == null) ? new Properties() : readProperties(file);
+        if (profile != null) {
+            properties.setProperty(PROFILE, profile);
+        }
+        properties.putAll(overrides);
+        return fromProperties(properties);
+    }
+
+    private static Properties readProperties(String file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * @return a copy of this configuration with the given properties changed
+     */
+    public TWConfiguration with(Properties properties) {
+        Properties p = toProperties();
+        for (String key : KEYS) {
+            String value = properties.getProperty(key);
+            if (value != null) {
+                p.setProperty(key, value.trim());
+            }
+        }
+        try {
+            return new TWConfiguration(
+                    Long.parseLong(p.getProperty(SEED)),
+                    Long.parseLong(p.getProperty(END_TIME)),
+                    Integer.parseInt(p.getProperty(FUEL_LEVEL)),
+                    Integer.parseInt(p.getProperty(SENSOR_RANGE)),
+                    Integer.parseInt(p.getProperty(AGENT_COUNT)),
+                    Integer.parseInt(p.getProperty(X_DIMENSION)),
+                    Integer.parseInt(p.getProperty(Y_DIMENSION)),
+                    Double.parseDouble(p.getProperty(TILE_MEAN)),
+                    Double.parseDouble(p.getProperty(HOLE_MEAN)),
+                    Double.parseDouble(p.getProperty(OBSTACLE_MEAN)),
+                    Double.parseDouble(p.getProperty(TILE_DEV)),
+                    Double.parseDouble(p.getProperty(HOLE_DEV)),
+                    Double.parseDouble(p.getProperty(OBSTACLE_DEV)),
+                    Integer.parseInt(p.getProperty(LIFE_TIME)),
+                    Integer.parseInt(p.getProperty(AGENT_THREADS)),
+                    p.getProperty(PLANNER));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed configuration value: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return a copy of this configuration with one value changed
+     */
+    public TWConfiguration with(String key, String value) {
+        if (!isKey(key)) {
+            throw new IllegalArgumentException("Unknown configuration key: " + key);
+        }
+        Properties p = new Properties();
+        p.setProperty(key, value);
+        return with(p);
+    }
+
+    /**
+     * @return the values of this configuration as properties, which
+     * fromProperties turns back into an equal configuration
+     */
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty(SEED, Long.toString(seed));
+        p.setProperty(END_TIME, Long.toString(endTime));
+        p.setProperty(FUEL_LEVEL, Integer.toString(defaultFuelLevel));
+        p.setProperty(SENSOR_RANGE, Integer.toString(defaultSensorRange));
+        p.setProperty(AGENT_COUNT, Integer.toString(agentCount));
+        p.setProperty(X_DIMENSION, Integer.toString(xDimension));
+        p.setProperty(Y_DIMENSION, Integer.toString(yDimension));
+        p.setProperty(TILE_MEAN, Double.toString(tileMean));
+        p.setProperty(HOLE_MEAN, Double.toString(holeMean));
+        p.setProperty(OBSTACLE_MEAN, Double.toString(obstacleMean));
+        p.setProperty(TILE_DEV, Double.toString(tileDev));
+        p.setProperty(HOLE_DEV, Double.toString(holeDev));
+        p.setProperty(OBSTACLE_DEV, Double.toString(obstacleDev));
+        p.setProperty(LIFE_TIME, Integer.toString(lifeTime));
+        p.setProperty(AGENT_THREADS, Integer.toString(agentThreads));
+        p.setProperty(PLANNER, planner);
+        return p;
+    }
+
+    private static boolean isKey(String key) {
+        for (String k : KEYS) {
+            if (k.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void validate() {
+        if (xDimension <= 0 || yDimension <= 0) {
+            throw new IllegalArgumentException("Grid dimensions must be positive: " + xDimension + "x" + yDimension);
+        }
+        if ((long) xDimension * yDimension > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large: " + xDimension + "x" + yDimension);
+        }
+        if (agentCount < 0 || defaultSensorRange < 0 || defaultFuelLevel < 0 || endTime < 0 || agentThreads < 0) {
+            throw new IllegalArgumentException("agentCount, defaultSensorRange, defaultFuelLevel, endTime and agentThreads must not be negative");
+        }
+        if (lifeTime <= 0) {
+            throw new IllegalArgumentException("lifeTime must be positive: " + lifeTime);
+        }
+        if (tileMean < 0 || holeMean < 0 || obstacleMean < 0
+                || tileDev < 0 || holeDev < 0 || obstacleDev < 0) {
+            throw new IllegalArgumentException("Object creation means and deviations must not be negative");
+        }
+        if (!planner.equals(PLANNER_ASTAR) && !planner.equals(PLANNER_FIELD)) {
+            throw new IllegalArgumentException("planner must be " + PLANNER_ASTAR + " or " + PLANNER_FIELD + ": " + planner);
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public int getDefaultFuelLevel() {
+        return defaultFuelLevel;
+    }
+
+    public int getDefaultSensorRange() {
+        return defaultSensorRange;
+    }
+
+    public int getAgentCount() {
+        return agentCount;
+    }
+
+    public int getxDimension() {
+        return xDimension;
+    }
+
+    public int getyDimension() {
+        return yDimension;
+    }
+
+    public double getTileMean() {
+        return tileMean;
+    }
+
+    public double getHoleMean() {
+        return holeMean;
+    }
+
+    public double getObstacleMean() {
+        return obstacleMean;
+    }
+
+    public double getTileDev() {
+        return tileDev;
+    }
+
+    public double getHoleDev() {
+        return holeDev;
+    }
+
+    public double getObstacleDev() {
+        return obstacleDev;
+    }
+
+    public int getLifeTime() {
+        return lifeTime;
+    }
+
+    /**
+     * @return the number of threads agents are stepped on in phases, 0 if
+     * they are stepped one at a time
+     */
+    public int getAgentThreads() {
+        return agentThreads;
+    }
+
+    /**
+     * @return PLANNER_ASTAR or PLANNER_FIELD
+     */
+    public String getPlanner() {
+        return planner;
+    }
+
+    @Override
+    public String toString() {
+        return "TWConfiguration" + toProperties();
+    }
+}
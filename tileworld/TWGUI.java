@@ -1,6 +1,7 @@
 package tileworld;
 
 import java.awt.Color;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import javax.swing.JFrame;
@@ -99,11 +100,12 @@ public class TWGUI extends GUIState {
 
         agentGridPortrayal.setField(((TWEnvironment) state).getAgentGrid());
 
-        agentGridPortrayal.setPortrayalForClass(TWAgent.class, TWAgent.getPortrayal());
+        int sensorRange = ((TWEnvironment) state).getConfiguration().getDefaultSensorRange();
+        agentGridPortrayal.setPortrayalForClass(TWAgent.class, TWAgent.getPortrayal(sensorRange));
 
 
        // gridPortrayal.setPortrayalForClass(SimpleTWAgent.class, TWAgent.getPortrayal());
-        agentGridPortrayal.setPortrayalForRemainder(TWAgent.getPortrayal());
+        agentGridPortrayal.setPortrayalForRemainder(TWAgent.getPortrayal(sensorRange));
 
         objectGridPortrayal.setPortrayalForClass(TWHole.class, TWHole.getPortrayal());
         objectGridPortrayal.setPortrayalForClass(TWTile.class, TWTile.getPortrayal());
@@ -159,12 +161,14 @@ public class TWGUI extends GUIState {
 
     /**
      * Main method called when running Tileworld with a visual display. It is
-     * possible to run without any display - see
+     * possible to run without any display - see TileworldMain.
+     * The configuration can be given as for TileworldMain, e.g., -profile dense
      * @param args
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
-        TWGUI twGui = new TWGUI();
+        TWConfiguration config = TWConfiguration.fromArgs(args);
+        TWGUI twGui = new TWGUI(new TWEnvironment(config.getSeed(), config));
 
         Console c = new Console(twGui);
         c.setVisible(true);
@@ -0,0 +1,814 @@
+package tileworld;
+
+import ec.util.MersenneTwisterFast;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import sim.util.Int2D;
+import tileworld.agent.Message;
+import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemorySingleton;
+import tileworld.agent.TWMessageBus;
+import tileworld.agent.TWObservationPayload;
+import tileworld.environment.TWEntity;
+import tileworld.environment.TWEnvironment;
+import tileworld.environment.TWObstacleBitboard;
+import tileworld.planners.AstarPathGenerator;
+import tileworld.planners.DStarLitePathGenerator;
+import tileworld.planners.HpaPathGenerator;
+import tileworld.planners.JpsPathGenerator;
+import tileworld.planners.TWPath;
+import tileworld.planners.TWPathStep;
+import tileworld.planners.TWPathGenerator;
+
+/**
+ * TileworldBenchmark
+ *
+ * Description:
+ *
+ * Headless measurements of the simulation, run with
+ *
+ * java tileworld.TileworldBenchmark [mode] [options]
+ *
+ * Modes:
+ *
+ * alloc [seed] [steps]   Bytes allocated per simulation step over a run
+ *                        (default 5000 steps), measured on the stepping
+ *                        thread. Needs a JVM supporting thread allocation
+ *                        counters, e.g., HotSpot.
+ *
+ * sensealloc [agents] [steps]
+ *                        Checks that the sense and communicate phase
+ *                        allocates nothing once warmed up: runs a 50x50
+ *                        world with 100 agents (default) and measures the
+ *                        bytes allocated by every agent sensing and
+ *                        communicating over the steps after the warm up
+ *                        (default 2000). Exits with status 1 if any.
+ *
+ * memstress [agents] [threads] [steps]
+ *                        Stress test of the shared memory under concurrent
+ *                        sensing: 64 agents (default) in a 50x50 world
+ *                        sense into one memory from 16 threads at once and
+ *                        into another one by one, for 500 steps. After each
+ *                        step the concurrent memory is checked for internal
+ *                        consistency and compared with the serial one.
+ *                        Exits with status 1 on any difference.
+ *
+ * scaling [size] [steps] [agents...]
+ *                        Step time and heap use as the team grows: for
+ *                        each agent count (default 16, 64, 256 and 500) a
+ *                        size x size world (default 1000) is run for the
+ *                        given steps (default 20) after as many to warm up.
+ *                        Heap use is measured after a full GC with the
+ *                        world still alive, run with a heap large enough
+ *                        for the largest team, e.g. -Xmx2g.
+ *
+ * messages [agents] [steps]
+ *                        Cost of sharing every agent's sensor window with
+ *                        the team every step, 64 agents (default) in a
+ *                        50x50 world over 1000 steps (default): as
+ *                        Map&lt;Int2D, Object&gt; messages and as reused
+ *                        TWObservationPayloads on the message bus, each
+ *                        decoded into a receiving memory. Prints time and
+ *                        bytes allocated per step for both.
+ *
+ * paths [size...]        A* and jump point search queries per second
+ *                        between random free cells of square grids
+ *                        (default 200 and 1000), with 1% random obstacles
+ *                        (about what the default world holds at a time)
+ *                        and with 20%. Exits with status 1 if the two find
+ *                        paths of different lengths.
+ *
+ * replan [changes] [size...]
+ *                        Replanning as obstacles come and go: on square
+ *                        grids (default 200 and 1000) with 20% random
+ *                        obstacles an agent walks up to 200 steps along
+ *                        its path to a random goal while after each step
+ *                        the given number of cells (default 5) flip
+ *                        between blocked and free. Compares a fresh A*
+ *                        search with a D* Lite repair at every step and
+ *                        exits with status 1 if their lengths differ.
+ *
+ * hierarchy [spacing] [size...]
+ *                        Hierarchical path finding on large square grids
+ *                        (default 500, 1000 and 2000) with 10% random
+ *                        obstacles, 16x16 clusters and a transition every
+ *                        spacing cells of an entrance (default 8): time to
+ *                        build the abstract graph, then A*, jump point
+ *                        search and HPA* queries between cells at most 100
+ *                        apart and between random cells, with 5 cells
+ *                        flipping between queries. Prints the mean and
+ *                        worst ratio of HPA* to shortest path lengths and
+ *                        exits with status 1 if HPA* misses a path, or
+ *                        with spacing 1 finds a longer one.
+ *
+ * Agents print their actions, so System.out is silenced while the
+ * simulation runs.
+ */
+public class TileworldBenchmark {
+
+    private static final PrintStream out = System.out;
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "alloc";
+        if (mode.equals("alloc")) {
+            long seed = args.length > 1 ? Long.parseLong(args[1]) : Parameters.seed;
+            long steps = args.length > 2 ? Long.parseLong(args[2]) : Parameters.endTime;
+            allocation(seed, steps);
+        } else if (mode.equals("sensealloc")) {
+            int agents = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+            long steps = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+            if (senseAllocation(agents, steps) > 0) {
+                System.exit(1);
+            }
+        } else if (mode.equals("memstress")) {
+            int agents = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+            long steps = args.length > 3 ? Long.parseLong(args[3]) : 500;
+            if (memoryStress(agents, threads, steps) > 0) {
+                System.exit(1);
+            }
+        } else if (mode.equals("scaling")) {
+            int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            long steps = args.length > 2 ? Long.parseLong(args[2]) : 20;
+            int[] counts = {16, 64, 256, 500};
+            if (args.length > 3) {
+                counts = new int[args.length - 3];
+                for (int i = 3; i < args.length; i++) {
+                    counts[i - 3] = Integer.parseInt(args[i]);
+                }
+            }
+            for (int agents : counts) {
+                scaling(size, agents, steps);
+            }
+        } else if (mode.equals("messages")) {
+            int agents = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+            long steps = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+            messages(agents, steps);
+        } else if (mode.equals("replan")) {
+            int changes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+            int[] sizes = {200, 1000};
+            if (args.length > 2) {
+                sizes = new int[args.length - 2];
+                for (int i = 2; i < args.length; i++) {
+                    sizes[i - 2] = Integer.parseInt(args[i]);
+                }
+            }
+            for (int size : sizes) {
+                if (!replanning(size, changes, Parameters.seed)) {
+                    System.exit(1);
+                }
+            }
+        } else if (mode.equals("hierarchy")) {
+            int spacing = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+            int[] sizes = {500, 1000, 2000};
+            if (args.length > 2) {
+                sizes = new int[args.length - 2];
+                for (int i = 2; i < args.length; i++) {
+                    sizes[i - 2] = Integer.parseInt(args[i]);
+                }
+            }
+            for (int size : sizes) {
+                for (int range : new int[]{100, size}) {
+                    if (!hierarchy(size, range, spacing, Parameters.seed)) {
+                        System.exit(1);
+                    }
+                }
+            }
+        } else if (mode.equals("paths")) {
+            int[] sizes = {200, 1000};
+            if (args.length > 1) {
+                sizes = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++) {
+                    sizes[i - 1] = Integer.parseInt(args[i]);
+                }
+            }
+            for (int size : sizes) {
+                for (double density : new double[]{0.01, 0.2}) {
+                    if (!paths(size, density, Parameters.seed)) {
+                        System.exit(1);
+                    }
+                }
+            }
+        } else {
+            out.println("Unknown mode: " + mode);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs one simulation and prints the bytes allocated per step, after a
+     * warm up run so that class loading and JIT are not counted.
+     */
+    static void allocation(long seed, long steps) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+            out.println("Thread allocation counters are not supported by this JVM.");
+            return;
+        }
+        com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) mx;
+        long threadId = Thread.currentThread().getId();
+
+        runSilently(seed, steps);
+
+        long before = amx.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        TWEnvironment tw = runSilently(seed, steps);
+        long time = System.nanoTime() - start;
+        long bytes = amx.getThreadAllocatedBytes(threadId) - before;
+
+        out.println("Steps: " + steps + " Reward: " + tw.getReward());
+        out.printf("Allocated: %d bytes, %.1f bytes/step, %.1f MB/s%n",
+                bytes, (double) bytes / steps, bytes / (time / 1e9) / (1 << 20));
+    }
+
+    /**
+     * Runs a world with the given number of agents, warms up for as many
+     * steps as measured, then makes every agent sense and communicate once
+     * more after each step, counting the bytes allocated by those calls
+     * only. Sensing twice at the same time leaves memory unchanged, so the
+     * run itself is not affected.
+     *
+     * @return bytes allocated by the sense and communicate phase
+     */
+    static long senseAllocation(int agents, long steps) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+            out.println("Thread allocation counters are not supported by this JVM.");
+            return 0;
+        }
+        com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) mx;
+        long threadId = Thread.currentThread().getId();
+
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.AGENT_COUNT, Integer.toString(agents));
+        PrintStream silent = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        System.setOut(silent);
+        long bytes = 0;
+        try {
+            TWEnvironment tw = new TWEnvironment(Parameters.seed, config);
+            tw.start();
+            List<TWAgent> all = tw.getAgents();
+            for (long step = 0; step < 2 * steps; step++) {
+                if (!tw.schedule.step(tw)) {
+                    break;
+                }
+                long before = amx.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < all.size(); i++) {
+                    all.get(i).sense();
+                    all.get(i).communicate();
+                }
+                if (step >= steps) {
+                    bytes += amx.getThreadAllocatedBytes(threadId) - before;
+                }
+            }
+            tw.finish();
+        } finally {
+            System.setOut(out);
+        }
+        out.printf("Sense and communicate, %d agents, %d steps: %d bytes allocated%n",
+                agents, steps, bytes);
+        return bytes;
+    }
+
+    /**
+     * Runs a world and, after each of its steps, makes every agent sense
+     * into two extra shared memories: serially into one and from a pool of
+     * threads into the other, agents interleaved across threads so that
+     * overlapping windows are written at the same time. Agents sense
+     * incrementally where they can and in full every fifth step, and the
+     * threads also decay and count the memory while others write. The
+     * concurrent memory must then pass checkConsistency and hold the same
+     * percepts and objects as the serial one.
+     *
+     * @return the number of steps after which the memories differed
+     */
+    static int memoryStress(int agents, int threads, long steps) {
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.AGENT_COUNT, Integer.toString(agents));
+        PrintStream silent = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        System.setOut(silent);
+        int failures = 0;
+        String firstFailure = null;
+        try {
+            final TWEnvironment tw = new TWEnvironment(Parameters.seed, config);
+            tw.start();
+            final List<TWAgent> all = tw.getAgents();
+            final int range = config.getDefaultSensorRange();
+            final TWAgentWorkingMemorySingleton serial = new TWAgentWorkingMemorySingleton(tw);
+            final TWAgentWorkingMemorySingleton concurrent = new TWAgentWorkingMemorySingleton(tw);
+            final long[][] last = new long[2][3 * all.size()];
+            for (long[] l : last) {
+                java.util.Arrays.fill(l, -1);
+            }
+            for (long step = 0; step < steps; step++) {
+                if (!tw.schedule.step(tw)) {
+                    break;
+                }
+                final boolean full = step % 5 == 0;
+                for (int i = 0; i < all.size(); i++) {
+                    stressSense(serial, all.get(i), range, full, last[0], i, tw);
+                }
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                for (int t = 0; t < threads; t++) {
+                    final int first = t;
+                    tasks.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            for (int i = first; i < all.size(); i += threads) {
+                                stressSense(concurrent, all.get(i), range, full, last[1], i, tw);
+                                concurrent.decayMemory();
+                            }
+                            return concurrent.getMemorySize();
+                        }
+                    });
+                }
+                for (Future<Integer> f : pool.invokeAll(tasks)) {
+                    f.get();
+                }
+                String failure = compareMemories(serial, concurrent, tw);
+                if (failure != null) {
+                    failures++;
+                    if (firstFailure == null) {
+                        firstFailure = "step " + step + ": " + failure;
+                    }
+                }
+            }
+            tw.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            firstFailure = "interrupted";
+            failures++;
+        } catch (ExecutionException e) {
+            firstFailure = e.getCause().toString();
+            failures++;
+        } finally {
+            System.setOut(out);
+            pool.shutdown();
+        }
+        out.printf("Shared memory, %d agents sensing on %d threads, %d steps: %d steps differ%n",
+                agents, threads, steps, failures);
+        if (firstFailure != null) {
+            out.println("First difference at " + firstFailure);
+        }
+        return failures;
+    }
+
+    /**
+     * Senses for agent i into memory, incrementally from the position and
+     * journal sequence kept in last unless full, as TWAgentSensor does.
+     */
+    private static void stressSense(TWAgentWorkingMemorySingleton memory, TWAgent agent, int range,
+            boolean full, long[] last, int i, TWEnvironment tw) {
+        long sequence = tw.getChangeJournal().getSequence();
+        if (full || last[3 * i + 2] < 0
+                || !memory.updateMemory(agent, range, (int) last[3 * i], (int) last[3 * i + 1], last[3 * i + 2])) {
+            memory.updateMemory(agent, range);
+        }
+        last[3 * i] = agent.getX();
+        last[3 * i + 1] = agent.getY();
+        last[3 * i + 2] = sequence;
+    }
+
+    /**
+     * @return a description of the first difference between the memories,
+     * or of an inconsistency within concurrent, null if none
+     */
+    private static String compareMemories(TWAgentWorkingMemorySingleton serial,
+            TWAgentWorkingMemorySingleton concurrent, TWEnvironment tw) {
+        try {
+            concurrent.checkConsistency();
+        } catch (IllegalStateException e) {
+            return e.getMessage();
+        }
+        if (serial.getMemorySize() != concurrent.getMemorySize()) {
+            return "memory size " + serial.getMemorySize() + " against " + concurrent.getMemorySize();
+        }
+        for (int x = 0; x < tw.getxDimension(); x++) {
+            for (int y = 0; y < tw.getyDimension(); y++) {
+                if (serial.getPerceptId(x, y) != concurrent.getPerceptId(x, y)
+                        || (serial.hasPercept(x, y) && serial.getPerceptTime(x, y) != concurrent.getPerceptTime(x, y))
+                        || serial.getMemoryGrid().get(x, y) != concurrent.getMemoryGrid().get(x, y)) {
+                    return "cell " + x + "," + y;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a world and after each step has every agent share its sensor
+     * window, once as a map message and once as a payload, the receiving
+     * side decoding each into a memory of its own. The first half of the
+     * steps warms up, the second half is measured.
+     */
+    static void messages(int agents, long steps) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+            out.println("Thread allocation counters are not supported by this JVM.");
+            return;
+        }
+        com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) mx;
+        long threadId = Thread.currentThread().getId();
+
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.AGENT_COUNT, Integer.toString(agents));
+        PrintStream silent = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        System.setOut(silent);
+        long[] time = new long[2];
+        long[] bytes = new long[2];
+        try {
+            TWEnvironment tw = new TWEnvironment(Parameters.seed, config);
+            tw.start();
+            List<TWAgent> all = tw.getAgents();
+            int range = config.getDefaultSensorRange();
+            TWMessageBus bus = tw.getMessageBus();
+            TWAgentWorkingMemorySingleton mapReceiver = new TWAgentWorkingMemorySingleton(tw);
+            TWAgentWorkingMemorySingleton payloadReceiver = new TWAgentWorkingMemorySingleton(tw);
+            TWObservationPayload[][] payloads = new TWObservationPayload[2][all.size()];
+            Message[][] sent = new Message[2][all.size()];
+            for (int parity = 0; parity < 2; parity++) {
+                for (int i = 0; i < all.size(); i++) {
+                    payloads[parity][i] = new TWObservationPayload();
+                    sent[parity][i] = new Message(all.get(i).getName(), null, payloads[parity][i]);
+                }
+            }
+            for (long step = 0; step < 2 * steps; step++) {
+                if (!tw.schedule.step(tw)) {
+                    break;
+                }
+                boolean measured = step >= steps;
+
+                long before = amx.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                for (int i = 0; i < all.size(); i++) {
+                    TWAgent agent = all.get(i);
+                    Map<Int2D, Object> window = new HashMap<Int2D, Object>();
+                    for (int x = Math.max(agent.getX() - range, 0); x <= Math.min(agent.getX() + range, tw.getxDimension() - 1); x++) {
+                        for (int y = Math.max(agent.getY() - range, 0); y <= Math.min(agent.getY() + range, tw.getyDimension() - 1); y++) {
+                            Object o = tw.getObjectGrid().get(x, y);
+                            if (o != null) {
+                                window.put(new Int2D(x, y), o);
+                            }
+                        }
+                    }
+                    tw.receiveMessage(new Message(agent.getName(), null, window));
+                }
+                for (Message m : tw.getMessages()) {
+                    for (Map.Entry<Int2D, Object> e : m.getMessage().entrySet()) {
+                        mapReceiver.mergeCell(e.getKey().x, e.getKey().y, (TWEntity) e.getValue());
+                    }
+                }
+                mapReceiver.decayMemory();
+                long middle = System.nanoTime();
+                long between = amx.getThreadAllocatedBytes(threadId);
+
+                // last step's payloads, sent before this step's advance()
+                List<Message> received = bus.channel(TWMessageBus.ALL);
+                for (int k = 0; k < received.size(); k++) {
+                    received.get(k).getPayload().decodeInto(payloadReceiver, tw);
+                }
+                payloadReceiver.decayMemory();
+                int parity = (int) (bus.getTick() & 1);
+                for (int i = 0; i < all.size(); i++) {
+                    payloads[parity][i].clear();
+                    payloads[parity][i].encodeWindow(all.get(i), range);
+                    bus.broadcast(sent[parity][i]);
+                }
+                long end = System.nanoTime();
+                long after = amx.getThreadAllocatedBytes(threadId);
+                if (measured) {
+                    time[0] += middle - start;
+                    time[1] += end - middle;
+                    bytes[0] += between - before;
+                    bytes[1] += after - between;
+                }
+            }
+            tw.finish();
+        } finally {
+            System.setOut(out);
+        }
+        out.printf("%d agents sharing their windows every step, %d steps:%n", agents, steps);
+        out.printf("  Map<Int2D, Object> messages: %.1f us/step, %.0f bytes/step%n",
+                time[0] / 1e3 / steps, (double) bytes[0] / steps);
+        out.printf("  payloads on the bus:         %.1f us/step, %.0f bytes/step%n",
+                time[1] / 1e3 / steps, (double) bytes[1] / steps);
+    }
+
+    /**
+     * Runs a size x size world of the default object density with the given
+     * number of agents and prints the mean time per step and the heap in use
+     * with the world alive.
+     */
+    static void scaling(int size, int agents, long steps) {
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.X_DIMENSION, Integer.toString(size))
+                .with(TWConfiguration.Y_DIMENSION, Integer.toString(size))
+                .with(TWConfiguration.AGENT_COUNT, Integer.toString(agents));
+        PrintStream silent = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        Runtime runtime = Runtime.getRuntime();
+        System.setOut(silent);
+        long time;
+        long heap;
+        try {
+            TWEnvironment tw = new TWEnvironment(Parameters.seed, config);
+            tw.start();
+            for (long warmUp = 0; warmUp < steps; warmUp++) {
+                tw.schedule.step(tw);
+            }
+            long start = System.nanoTime();
+            for (long step = 0; step < steps; step++) {
+                tw.schedule.step(tw);
+            }
+            time = System.nanoTime() - start;
+            System.gc();
+            heap = runtime.totalMemory() - runtime.freeMemory();
+            tw.finish();
+        } finally {
+            System.setOut(out);
+        }
+        out.printf("%dx%d, %d agents: %.1f ms/step, %.1f ms/agent-step, heap %.0f MB%n",
+                size, size, agents, time / 1e6 / steps, time / 1e6 / steps / agents, heap / 1048576.0);
+    }
+
+    /**
+     * Times A* and jump point search on a size x size grid with the given
+     * obstacle density, first as a warm up and then measured. Fewer queries
+     * are run on larger grids so each size takes a few seconds.
+     *
+     * @return false if the two disagree on the length of a path
+     */
+    static boolean paths(int size, double density, long seed) {
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.X_DIMENSION, Integer.toString(size))
+                .with(TWConfiguration.Y_DIMENSION, Integer.toString(size));
+        TWEnvironment map = new TWEnvironment(seed, config);
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+        TWObstacleBitboard blocked = new TWObstacleBitboard(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (random.nextDouble() < density) {
+                    blocked.set(x, y);
+                }
+            }
+        }
+        int queries = Math.max(20, 2000000 / (size * size));
+        int[] ends = new int[queries * 4];
+        for (int i = 0; i < ends.length; i += 2) {
+            do {
+                ends[i] = random.nextInt(size);
+                ends[i + 1] = random.nextInt(size);
+            } while (blocked.get(ends[i], ends[i + 1]));
+        }
+
+        TWPathGenerator[] generators = {
+            new AstarPathGenerator(map, blocked, size * size),
+            new JpsPathGenerator(map, blocked, size * size)};
+        String[] names = {"A*", "JPS"};
+        for (int q = 0; q < queries; q++) {
+            int i = q * 4;
+            TWPath a = generators[0].findPath(ends[i], ends[i + 1], ends[i + 2], ends[i + 3]);
+            TWPath b = generators[1].findPath(ends[i], ends[i + 1], ends[i + 2], ends[i + 3]);
+            if ((a == null) != (b == null) || (a != null && a.getpath().size() != b.getpath().size())) {
+                out.printf("Path lengths differ from %d,%d to %d,%d%n", ends[i], ends[i + 1], ends[i + 2], ends[i + 3]);
+                return false;
+            }
+        }
+        for (int g = 0; g < generators.length; g++) {
+            long start = System.nanoTime();
+            int found = timePaths(generators[g], ends, queries);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            out.printf("%-3s %dx%d, %.0f%% obstacles: %d queries, %d paths, %.1f us/query, %.0f queries/s%n",
+                    names[g], size, size, density * 100, queries, found, seconds * 1e6 / queries, queries / seconds);
+        }
+        return true;
+    }
+
+    /**
+     * Walks agents along their paths on a size x size grid with 20%
+     * obstacles, flipping changes random cells after every step, and times
+     * a fresh A* search against the D* Lite repair at each step. The first
+     * D* Lite search of each walk is timed apart, as it is a full search.
+     *
+     * @return false if the two disagree on the length of a path
+     */
+    static boolean replanning(int size, int changes, long seed) {
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.X_DIMENSION, Integer.toString(size))
+                .with(TWConfiguration.Y_DIMENSION, Integer.toString(size));
+        TWEnvironment map = new TWEnvironment(seed, config);
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+        TWObstacleBitboard blocked = new TWObstacleBitboard(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (random.nextDouble() < 0.2) {
+                    blocked.set(x, y);
+                }
+            }
+        }
+        AstarPathGenerator astar = new AstarPathGenerator(map, blocked, size * size);
+        DStarLitePathGenerator dstar = new DStarLitePathGenerator(map, blocked, size * size);
+        int walks = Math.max(2, 400000 / (size * size));
+        long astarTime = 0;
+        long firstTime = 0;
+        long repairTime = 0;
+        long expanded = 0;
+        int repairs = 0;
+        // the first walk warms up and is not counted
+        for (int walk = -1; walk < walks; walk++) {
+            int sx, sy, tx, ty;
+            do {
+                sx = random.nextInt(size);
+                sy = random.nextInt(size);
+                tx = random.nextInt(size);
+                ty = random.nextInt(size);
+            } while (blocked.get(sx, sy) || blocked.get(tx, ty));
+            for (int step = 0; step < 200 && (sx != tx || sy != ty); step++) {
+                long t0 = System.nanoTime();
+                TWPath a = astar.findPath(sx, sy, tx, ty);
+                long t1 = System.nanoTime();
+                TWPath d = dstar.findPath(sx, sy, tx, ty);
+                long t2 = System.nanoTime();
+                if ((a == null) != (d == null) || (a != null && a.getpath().size() != d.getpath().size())) {
+                    out.printf("Path lengths differ from %d,%d to %d,%d%n", sx, sy, tx, ty);
+                    return false;
+                }
+                if (walk >= 0) {
+                    astarTime += t1 - t0;
+                    if (step == 0) {
+                        firstTime += t2 - t1;
+                    } else {
+                        repairTime += t2 - t1;
+                        expanded += dstar.getExpanded();
+                        repairs++;
+                    }
+                }
+                if (d == null) {
+                    break;
+                }
+                TWPathStep next = d.getpath().getFirst();
+                sx += next.getDirection().dx;
+                sy += next.getDirection().dy;
+                for (int c = 0; c < changes; c++) {
+                    int x = random.nextInt(size);
+                    int y = random.nextInt(size);
+                    if ((x != sx || y != sy) && (x != tx || y != ty)) {
+                        blocked.set(x, y, !blocked.get(x, y));
+                    }
+                }
+            }
+        }
+        int searches = walks + repairs;
+        out.printf("%dx%d, %d changes/step: A* %.1f us/search, D* Lite first search %.1f us, repair %.1f us (%d cells expanded), over %d walks%n",
+                size, size, changes, astarTime / 1e3 / searches, firstTime / 1e3 / walks,
+                repairTime / 1e3 / Math.max(repairs, 1), expanded / Math.max(repairs, 1), walks);
+        return true;
+    }
+
+    /**
+     * Times A*, jump point search and HPA* between cells at most range apart
+     * on a size x size grid with 10% obstacles, flipping 5 cells before each
+     * query so that HPA* updates its graph every time. A first round of
+     * queries warms up and is not counted.
+     *
+     * @return false if HPA* misses a path, or with spacing 1 finds a longer
+     * one
+     */
+    static boolean hierarchy(int size, int range, int spacing, long seed) {
+        TWConfiguration config = TWConfiguration.defaults()
+                .with(TWConfiguration.X_DIMENSION, Integer.toString(size))
+                .with(TWConfiguration.Y_DIMENSION, Integer.toString(size));
+        TWEnvironment map = new TWEnvironment(seed, config);
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+        TWObstacleBitboard blocked = new TWObstacleBitboard(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (random.nextDouble() < 0.1) {
+                    blocked.set(x, y);
+                }
+            }
+        }
+        AstarPathGenerator astar = new AstarPathGenerator(map, blocked, size * size);
+        JpsPathGenerator jps = new JpsPathGenerator(map, blocked, size * size);
+        HpaPathGenerator hpa = new HpaPathGenerator(map, blocked, size * size, 16, spacing);
+        double build = 0;
+
+        int queries = (range < size) ? 200 : 40;
+        long[] times = new long[3];
+        long shortest = 0;
+        long found = 0;
+        double worst = 1;
+        for (int q = -queries; q < queries; q++) {
+            for (int c = 0; c < 5; c++) {
+                int x = random.nextInt(size);
+                int y = random.nextInt(size);
+                blocked.set(x, y, !blocked.get(x, y));
+            }
+            int sx, sy, tx, ty;
+            do {
+                sx = random.nextInt(size);
+                sy = random.nextInt(size);
+                tx = Math.min(size - 1, Math.max(0, sx + random.nextInt(2 * range + 1) - range));
+                ty = Math.min(size - 1, Math.max(0, sy + random.nextInt(2 * range + 1) - range));
+            } while (blocked.get(sx, sy) || blocked.get(tx, ty));
+            long t0 = System.nanoTime();
+            TWPath a = astar.findPath(sx, sy, tx, ty);
+            long t1 = System.nanoTime();
+            jps.findPath(sx, sy, tx, ty);
+            long t2 = System.nanoTime();
+            TWPath h = hpa.findPath(sx, sy, tx, ty);
+            long t3 = System.nanoTime();
+            if ((a == null) != (h == null)
+                    || (spacing == 1 && a != null && a.getpath().size() != h.getpath().size())) {
+                out.printf("HPA* path from %d,%d to %d,%d differs from A*%n", sx, sy, tx, ty);
+                return false;
+            }
+            if (q == -queries) {
+                // the first query builds the graph
+                build = (t3 - t2) / 1e6;
+            }
+            if (q < 0) {
+                continue;
+            }
+            times[0] += t1 - t0;
+            times[1] += t2 - t1;
+            times[2] += t3 - t2;
+            if (a != null) {
+                shortest += a.getpath().size();
+                found += h.getpath().size();
+                worst = Math.max(worst, h.getpath().size() / (double) a.getpath().size());
+            }
+        }
+        out.printf("%dx%d, range %d, spacing %d: build %.0f ms, %d nodes; A* %.1f us, JPS %.1f us, HPA* %.1f us/query; HPA* length %.3f x shortest, worst %.2f%n",
+                size, size, range, spacing, build, hpa.getNodeCount(), times[0] / 1e3 / queries,
+                times[1] / 1e3 / queries, times[2] / 1e3 / queries, found / (double) Math.max(shortest, 1), worst);
+        return true;
+    }
+
+    private static int timePaths(TWPathGenerator generator, int[] ends, int queries) {
+        int found = 0;
+        for (int q = 0; q < queries; q++) {
+            int i = q * 4;
+            if (generator.findPath(ends[i], ends[i + 1], ends[i + 2], ends[i + 3]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Runs a simulation for the given number of steps with System.out
+     * silenced.
+     */
+    static TWEnvironment runSilently(long seed, long steps) {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            TWEnvironment tw = new TWEnvironment(seed);
+            tw.start();
+            while (tw.schedule.getSteps() < steps) {
+                if (!tw.schedule.step(tw)) {
+                    break;
+                }
+            }
+            tw.finish();
+            return tw;
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
@@ -6,8 +6,8 @@ package tileworld;
 
 import sim.engine.SimState;
 import tileworld.environment.TWEnvironment;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * TileworldMain
@@ -25,31 +25,31 @@ import java.util.concurrent.TimeUnit;
  */
 public class TileworldMain {
 	
-	public static void main(String args[]) throws InterruptedException {
-		int overallScore = 0; 
-		int iteration = 10;
-		for(int i = 0; i<iteration; i++) {
-			int seed = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
-			System.out.println("Seed: "+seed);
-			TWEnvironment tw = new TWEnvironment(seed);
-			tw.start();
-
-			long steps = 0;
-
-			while (steps < Parameters.endTime) {
-				if (!tw.schedule.step(tw)) {
-					break;
-				}
-				steps = tw.schedule.getSteps();
+	/**
+	 * Runs replications in parallel, see TWBatchRunner. The configuration is
+	 * Parameters unless given on the command line, see
+	 * TWConfiguration#fromArgs, the seed option is the master seed.
+	 *
+	 * -replications N   number of replications, default 10
+	 * -threads T        worker threads, default one per core
+	 */
+	public static void main(String args[]) throws InterruptedException, ExecutionException, IOException {
+		TWConfiguration config = TWConfiguration.fromArgs(args);
+		int replications = Integer.parseInt(option(args, "replications", "10"));
+		int threads = Integer.parseInt(option(args, "threads", "0"));
+		TWBatchRunner runner = new TWBatchRunner(config, replications, config.getSeed(), threads);
+		runner.run().print(System.out);
+		System.exit(0);  // make sure any threads finish up
+	}
+
+	private static String option(String[] args, String name, String defaultValue) {
+		for (int i = 0; i + 1 < args.length; i++) {
+			if (args[i].equals("-" + name)) {
+				return args[i + 1];
 			}
-			System.out.println("The final reward is: "+tw.getReward());
-			overallScore+=tw.getReward();
-			tw.finish();
-			TimeUnit.SECONDS.sleep(1);
 		}
-		System.out.println("The average reward is: "+((float)overallScore/iteration));
-		System.exit(0);  // make sure any threads finish up
-    }
+		return defaultValue;
+	}
 
     public static void main4(String args[]) {
 
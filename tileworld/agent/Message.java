@@ -8,6 +8,7 @@ public class Message {
 	private String from; // the sender
 	private String to; // the recepient
 	private Map<Int2D, Object> message; // the message
+	private TWObservationPayload payload; // observations in compact form, may be null
 	
 	public Message(String from, String to, Map<Int2D, Object> message){
 		this.from = from;
@@ -15,6 +16,16 @@ public class Message {
 		this.message = message;
 	}
 
+	/**
+	 * A message carrying observations as a primitive payload rather than a
+	 * map, see TWObservationPayload.
+	 */
+	public Message(String from, String to, TWObservationPayload payload){
+		this.from = from;
+		this.to = to;
+		this.payload = payload;
+	}
+
 	public String getFrom() {
 		return from;
 	}
@@ -27,4 +38,11 @@ public class Message {
 		return message;
 	}
 
+	/**
+	 * @return the observations of the message, null if it has none
+	 */
+	public TWObservationPayload getPayload() {
+		return payload;
+	}
+
 }
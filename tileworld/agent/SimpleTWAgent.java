@@ -52,8 +52,7 @@ public class SimpleTWAgent extends TWAgent{
                 return new TWThought(TWAction.MOVE, getRandomDirection());
             }else {
                 //System.out.println(this.name+" moving to obj");
-                TWPathStep pathStep = path.popNext();
-                return new TWThought(TWAction.MOVE, pathStep.getDirection());
+                return new TWThought(TWAction.MOVE, twPlanner.execute());
             }
         }
     }
@@ -66,6 +65,8 @@ public class SimpleTWAgent extends TWAgent{
         //pickUpTile(Tile)
         //putTileInHole(Hole)
         //refuel()
+        //when agents think in parallel another agent may have taken the
+        //object since, so check it is still there
         Object object = memory.getMemoryGrid().get(x, y);
         switch (thought.getAction()){
 
@@ -77,12 +78,16 @@ public class SimpleTWAgent extends TWAgent{
                 }
                 break;
             case PICKUP:
-                pickUpTile((TWTile) object);
-                this.getMemory().getMemoryGrid().set(x, y, null);
+                if (object instanceof TWTile) {
+                    pickUpTile((TWTile) object);
+                    sharedMemory.forgetObject(x, y);
+                }
                 break;
             case PUTDOWN:
-                putTileInHole((TWHole) object);
-                this.getMemory().getMemoryGrid().set(x, y, null);
+                if (object instanceof TWHole) {
+                    putTileInHole((TWHole) object);
+                    sharedMemory.forgetObject(x, y);
+                }
                 break;
             case REFUEL:
                 refuel();
@@ -94,7 +99,7 @@ public class SimpleTWAgent extends TWAgent{
 
     private TWDirection getRandomDirection(){
 
-        TWDirection randomDir = TWDirection.values()[this.getEnvironment().random.nextInt(5)];
+        TWDirection randomDir = TWDirection.values()[getRandom().nextInt(5)];
 
         if(this.getX()>=this.getEnvironment().getxDimension() ){
             randomDir = TWDirection.W;
@@ -1,7 +1,9 @@
 package tileworld.agent;
 
+import ec.util.MersenneTwisterFast;
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.List;
 
 
 import sim.display.GUIState;
@@ -15,6 +17,7 @@ import tileworld.environment.TWDirection;
 import tileworld.environment.TWEntity;
 import tileworld.environment.TWEnvironment;
 import tileworld.environment.TWHole;
+import tileworld.environment.TWObject;
 import tileworld.environment.TWTile;
 import tileworld.exceptions.CellBlockedException;
 
@@ -46,7 +49,7 @@ public abstract class TWAgent extends TWEntity implements Steppable {
         this.score = 0;
         this.fuelLevel = fuelLevel;
         this.carriedTiles = new ArrayList<TWTile>();
-        this.sensor = new TWAgentSensor(this, Parameters.defaultSensorRange);
+        this.sensor = new TWAgentSensor(this, env.getConfiguration().getDefaultSensorRange());
         this.memory = new TWAgentWorkingMemory(this, env.schedule, env.getxDimension(), env.getyDimension());
     }
     /**
@@ -65,6 +68,16 @@ public abstract class TWAgent extends TWEntity implements Steppable {
      * Memory which stores sensed facts in the form of tuples (see TWAgentMemoryFact)
      */
     protected TWAgentWorkingMemory memory;
+    /**
+     * The agent's own random number generator when agents think in
+     * parallel, see getRandom.
+     */
+    private MersenneTwisterFast random;
+    /**
+     * Position of the agent in its environment's agent list, its address on
+     * the message bus, -1 until registered.
+     */
+    private int index = -1;
 
     //THE THREE METHODS YOU SHOULD EXTEND - SENSE, THINK, ACT
     /**
@@ -125,9 +138,9 @@ public abstract class TWAgent extends TWEntity implements Steppable {
     protected final void pickUpTile(TWTile tile) {
     	if(this.getEnvironment().canPickupTile(tile, this)) {
 	    	if (carriedTiles.size() < 3){
-	    		carriedTiles.add(tile);
+	    		//carry what left the grid, not what memory referred to
+	    		carriedTiles.add((TWTile) this.getEnvironment().removeTWObject(tile.getX(), tile.getY()));
 	    		System.out.println("Pickup...");
-	    		this.getEnvironment().getObjectGrid().set(tile.getX(), tile.getY(), null);
 	    	} else {
 	    		System.out.println("Agent already carries 3 tiles.");
 	    	}
@@ -144,8 +157,11 @@ public abstract class TWAgent extends TWEntity implements Steppable {
      */
     protected final void putTileInHole(TWHole hole) {
     	if(this.getEnvironment().canPutdownTile(hole, this)) {
-    		this.carriedTiles.remove(0); //remove first tile in list
-    		this.getEnvironment().getObjectGrid().set(hole.getX(), hole.getY(), null);
+    		TWTile used = this.carriedTiles.remove(0); //remove first tile in list
+    		TWObject filled = this.getEnvironment().removeTWObject(hole.getX(), hole.getY());
+    		//both are gone for good, their instances can be reused
+    		this.getEnvironment().recycleTWObject(used);
+    		this.getEnvironment().recycleTWObject(filled);
     		this.score++; // increase individual reward       
     		this.getEnvironment().increaseReward(); // increase the overall reward
     		System.out.println("Put tile...");
@@ -162,7 +178,7 @@ public abstract class TWAgent extends TWEntity implements Steppable {
     protected final void refuel() {
         //assert (this.sameLocation(this.getEnvironment().getFuelingStation()));   	
     	if(this.getEnvironment().inFuelStation(this)) {
-    		this.fuelLevel = Parameters.defaultFuelLevel;
+    		this.fuelLevel = this.getEnvironment().getConfiguration().getDefaultFuelLevel();
     		System.out.println("Refuel.....");
     	}else {
     		System.out.println("Agent is not in the same position of fuel station.");
@@ -215,8 +231,18 @@ public abstract class TWAgent extends TWEntity implements Steppable {
      * @return
      */
     public static Portrayal getPortrayal() {
+        return getPortrayal(Parameters.defaultSensorRange);
+    }
+
+    /**
+     * As getPortrayal, drawing the sensor range of the agents' configuration.
+     *
+     * @param sensorRange sensor range to outline around the agent
+     * @return
+     */
+    public static Portrayal getPortrayal(int sensorRange) {
         //red filled box.
-        return new TWAgentPortrayal(Color.blue, Parameters.defaultSensorRange) {
+        return new TWAgentPortrayal(Color.blue, sensorRange) {
 
             @Override
             public Inspector getInspector(LocationWrapper wrapper, GUIState state) {
@@ -239,6 +265,50 @@ public abstract class TWAgent extends TWEntity implements Steppable {
         return carriedTiles.size();
     }
 
+    /**
+     * Returns the random number generator decisions of this agent should be
+     * drawn from. That is the environment's, unless the agent is stepped by
+     * a TWParallelStepper, which gives every agent one of its own so that
+     * what it draws does not depend on the order agents think in.
+     *
+     * @return the generator to use
+     */
+    protected MersenneTwisterFast getRandom() {
+        return (random != null) ? random : this.getEnvironment().random;
+    }
+
+    void setRandom(MersenneTwisterFast random) {
+        this.random = random;
+    }
+
+    /**
+     * @return the index of this agent, its address on the environment's
+     * message bus
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * @return the messages sent to this agent during the previous step
+     * @see TWMessageBus#inbox(int)
+     */
+    public List<Message> getInbox() {
+        return this.getEnvironment().getMessageBus().inbox(index);
+    }
+
+    /**
+     * Returns the sensor of this agent
+     * @return sensor
+     */
+    public TWAgentSensor getSensor() {
+        return sensor;
+    }
+
     /**
      * Returns the working memory of this agent
      * @return working memory
@@ -0,0 +1,40 @@
+package tileworld.agent;
+
+import tileworld.environment.TWEnvironment;
+
+/**
+ * TWAgentFactory
+ *
+ * Description:
+ *
+ * Makes the agents of an environment. TWEnvironment.start() asks its factory
+ * for as many agents as the configuration's agentCount, each at a random
+ * free cell, so a team of any size and kind can be run without changing the
+ * environment, e.g.
+ *
+ * env.setAgentFactory((i, x, y, e, fuel) -&gt; new MyAgent("mine" + i, x, y, e, fuel));
+ */
+public interface TWAgentFactory {
+
+    /**
+     * The factory used unless another is set, makes SimpleTWAgents named
+     * agent1, agent2, ...
+     */
+    TWAgentFactory SIMPLE = new TWAgentFactory() {
+        @Override
+        public TWAgent create(int number, int x, int y, TWEnvironment env, double fuelLevel) {
+            return new SimpleTWAgent("agent" + number, x, y, env, fuelLevel);
+        }
+    };
+
+    /**
+     * @param number number of the agent, from 1 to agentCount in the order
+     * they are made
+     * @param x initial x position
+     * @param y initial y position
+     * @param env the environment the agent is in
+     * @param fuelLevel initial fuel
+     * @return the new agent
+     */
+    TWAgent create(int number, int x, int y, TWEnvironment env, double fuelLevel);
+}
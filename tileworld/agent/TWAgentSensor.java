@@ -5,8 +5,6 @@
 
 package tileworld.agent;
 
-import sim.util.Bag;
-import sim.util.IntBag;
 import tileworld.environment.TWEnvironment;
 
 /**
@@ -33,6 +31,19 @@ public class TWAgentSensor {
     TWAgent me;
     int sensorRange;
 
+    /**
+     * If set, senses after the first only merge what changed in view since
+     * the previous one, see TWAgentWorkingMemorySingleton.updateMemory.
+     */
+    private boolean incremental = true;
+    /**
+     * Where the previous sense was made and how far the environment's change
+     * journal was then, lastSequence is -1 before the first sense.
+     */
+    private int lastX;
+    private int lastY;
+    private long lastSequence = -1;
+
     TWAgentSensor(TWAgent moi, int defaultSensorRange) {
        me = moi;
        sensorRange = defaultSensorRange;
@@ -43,25 +54,30 @@ public class TWAgentSensor {
      * specified sensor range
      */
     public void sense(){
-        Bag sensedObjects = new Bag();
-        Bag sensedAgents = new Bag();
-        IntBag objectXCoords = new IntBag();
-        IntBag objectYCoords = new IntBag();
-        IntBag agentXCoords = new IntBag();
-        IntBag agentYCoords = new IntBag();
-        
-        
+        //import facts to memory, objects are read from the object grid
+        //window by the memory itself, or only what changed in it
+        long sequence = me.getEnvironment().getChangeJournal().getSequence();
+        if (!incremental || lastSequence < 0
+                || !me.getMemory().getSharedMemory().updateMemory(me, sensorRange, lastX, lastY, lastSequence)) {
+            me.getMemory().updateMemory(sensorRange);
+        }
+        lastX = me.getX();
+        lastY = me.getY();
+        lastSequence = sequence;
 
-        //sense objects
-        // getNeighborsMaxDistance: Gets all neighbors of a location that satisfy max( abs(x-X) , abs(y-Y) ) <= dist.
-        // Note that the order and size of the result sensedObjects (sensedAgents) may not correspond to the objectXCoords (agentXCoords) and objectYCoords (agentYCoords) bags.
-        me.getEnvironment().getObjectGrid().getNeighborsMaxDistance(me.getX(), me.getY(), sensorRange, false, sensedObjects, objectXCoords, objectYCoords);
-        me.getEnvironment().getAgentGrid().getNeighborsMaxDistance(me.getX(), me.getY(), sensorRange, false, sensedAgents, agentXCoords, agentYCoords);
-
-        //import facts to memory
-        me.getMemory().updateMemory(sensedObjects, objectXCoords, objectYCoords, sensedAgents,agentXCoords,agentYCoords);
+    }
 
+    public boolean isIncremental() {
+        return incremental;
     }
 
+    /**
+     * Switches incremental sensing on or off, on by default. Either way the
+     * memory ends up the same, off makes every sense read the whole window.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        this.lastSequence = -1;
+    }
 
 }
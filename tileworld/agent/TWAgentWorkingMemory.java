@@ -51,18 +51,32 @@ public class TWAgentWorkingMemory {
 	 * Also note that currently the agent has no sense of moving objects, so
 	 * an agent may remember the same object at two locations simultaneously.
 	 * 
-	 * Other agents in the grid are sensed and passed to this function. But it
-	 * is currently not used for anything. Do remember that an agent sense itself
-	 * too.
+	 * Agents are not remembered, so none are sensed: the agent bags are
+	 * ignored, and TWAgentSensor no longer collects any.
 	 *
 	 * @param sensedObjects bag containing the sensed objects
 	 * @param objectXCoords bag containing x coordinates of objects
 	 * @param objectYCoords bag containing y coordinates of object
-	 * @param sensedAgents bag containing the sensed agents
-	 * @param agentXCoords bag containing x coordinates of agents
-	 * @param agentYCoords bag containing y coordinates of agents
+	 * @param sensedAgents ignored
+	 * @param agentXCoords ignored
+	 * @param agentYCoords ignored
+	 * @deprecated the sensor reads the environment directly, use
+	 *             {@link #updateMemory(int)}
 	 */
+	@Deprecated
 	public void updateMemory(Bag sensedObjects, IntBag objectXCoords, IntBag objectYCoords, Bag sensedAgents, IntBag agentXCoords, IntBag agentYCoords) {
 		this.sharedMemory.updateMemory(this.agent, sensedObjects, objectXCoords, objectYCoords, sensedAgents, agentXCoords, agentYCoords);
 	}
+
+	/**
+	 * Called at each time step, updates the memory map of the agent with the
+	 * objects within sensorRange of it, read directly from the environment.
+	 *
+	 * Agents are not remembered, so none are sensed.
+	 *
+	 * @param sensorRange how far the agent sees
+	 */
+	public void updateMemory(int sensorRange) {
+		this.sharedMemory.updateMemory(this.agent, sensorRange);
+	}
 }
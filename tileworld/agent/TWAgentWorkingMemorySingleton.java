@@ -5,23 +5,49 @@ import sim.field.grid.ObjectGrid2D;
 import sim.util.Bag;
 import sim.util.Int2D;
 import sim.util.IntBag;
-import tileworld.Parameters;
 import tileworld.environment.*;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-
-
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * TWAgentWorkingMemorySingleton
+ *
+ * Description:
+ *
+ * The memory shared by the team of agents of one environment. Despite the
+ * name there is one instance per TWEnvironment, created by its start() and
+ * dropped by its finish(), so replications (sequential or in parallel
+ * threads) never see each other's memory.
+ *
+ * Agents may sense into the memory from several threads at once. The grid
+ * is cut into stripes of STRIPE_ROWS rows, each with its own lock, and
+ * every write to a cell is made holding the lock of its stripe. The decay
+ * queues, due lists and object counts are kept per stripe under the same
+ * lock. The spatial index shares its upper levels between stripes and has
+ * a lock of its own, taken only when the type of a cell changes. Queries
+ * (the memory grid, nearest objects, percepts) take no locks and must not
+ * overlap writes, i.e. agents think once all have sensed.
+ */
 public class TWAgentWorkingMemorySingleton {
     /**
      * Access to Scedule (TWEnvironment) so that we can retrieve the current timestep of the simulation.
      */
     private Schedule schedule;
 
-    private final static int MAX_TIME = 10;
+    /**
+     * Number of timesteps after which an object percept decays from the
+     * memory grid.
+     */
+    public final static int MAX_TIME = 10;
     private final static float MEM_DECAY = 0.5f;
-
-    private static volatile TWAgentWorkingMemorySingleton mInstance;
+    /**
+     * Rows per stripe, a multiple of the 8 rows of a spatial index bucket so
+     * that no bucket list is shared by two stripes.
+     */
+    static final int STRIPE_ROWS = 16;
 
     private TWEnvironment mEnv;
     private ObjectGrid2D memoryGrid;
@@ -31,36 +57,138 @@ public class TWAgentWorkingMemorySingleton {
      * However, when updating the memory a queue is very slow.
      * Here we trade off memory (in that we maintain a complete image of the map)
      * for speed of update. Updating the memory is a lot more straightforward.
+     * A percept stays in its cell and is updated in place. Percepts are kept
+     * in three parallel arrays indexed by cell (y * width + x): the
+     * TWCellPlanes type and id of the entity seen and the tick it was seen
+     * at. An id of NO_ENTITY means nothing is remembered there.
      */
-    private TWAgentPercept[][] objects;
-    private List<TWAgent> agents = new ArrayList<>();
+    private final byte[] perceptType;
+    private final int[] perceptId;
+    private final int[] perceptTick;
     /**
-     * Number of items recorded in memory, currently doesn't decrease as memory
-     * is not degraded - nothing is ever removed!
+     * Tick each cell was last sensed at, Integer.MIN_VALUE if never. Every
+     * sense stamps its whole window, incremental ones included, so
+     * observations relayed from an older tick can be told apart.
      */
-    private int memorySize;
+    private final int[] seenTick;
+    /**
+     * Cells whose percept is an obstacle, one bit per cell. Rows are stored
+     * in words of their own, so stripes never share a word.
+     */
+    private TWObstacleBitboard obstacleBits;
+    /**
+     * Type (TWCellPlanes code) of every entity in memoryGrid, for nearest
+     * object queries. memoryGrid must only be changed through setMemoryCell
+     * to keep the two in step.
+     */
+    private TWSpatialIndex objectIndex;
+    private List<TWAgent> agents = new CopyOnWriteArrayList<>();
+    private final Stripe[] stripes;
 
+    /**
+     * The state kept per stripe of rows, guarded by the stripe itself.
+     */
+    private static final class Stripe {
+        /**
+         * The object percepts in the order they were recorded, for decay.
+         */
+        final TWPerceptDecayQueue decayQueue = new TWPerceptDecayQueue();
+        /**
+         * Every percept in the order recorded, for finding those old enough
+         * to be refreshed by an incremental sense.
+         */
+        final TWPerceptDecayQueue refreshQueue = new TWPerceptDecayQueue();
+        /**
+         * As decayQueue and refreshQueue, for percepts relayed by
+         * teammates. Those are recorded at the tick they were seen, behind
+         * the sender by the lag of the relay, so they are kept apart to
+         * keep each queue in tick order.
+         */
+        final TWPerceptDecayQueue relayedDecayQueue = new TWPerceptDecayQueue();
+        final TWPerceptDecayQueue relayedRefreshQueue = new TWPerceptDecayQueue();
+        /**
+         * Cells whose percept turned lifeTime old at dueTick, see collectDue.
+         */
+        int[] dueCells = new int[16];
+        int dueCount;
+        int dueTick = Integer.MIN_VALUE;
+        /**
+         * Tick of the last decay, read without the lock to skip stripes
+         * already decayed this step.
+         */
+        volatile int decayTick = Integer.MIN_VALUE;
+        /**
+         * Number of objects of the stripe on the memory grid.
+         */
+        int size;
+    }
 
-    static private List<Int2D> spiral = new NeighbourSpiral(Parameters.defaultSensorRange * 4).spiral();
 
+    /**
+     * Offsets searched by getNearbyObject, built on first use as it is large
+     * for long sensor ranges.
+     */
+    private volatile List<Int2D> spiral;
+    /**
+     * Window of sensed objects by location for the Bag based updateMemory,
+     * per thread and left empty after each call.
+     */
+    private static final ThreadLocal<TWEntity[]> WINDOW = new ThreadLocal<TWEntity[]>() {
+        @Override
+        protected TWEntity[] initialValue() {
+            return new TWEntity[0];
+        }
+    };
+    private final int sensorRange;
+    private final int lifeTime;
 
-    private TWAgentWorkingMemorySingleton(TWEnvironment env) {
+
+    /**
+     * Creates an empty memory for the agents of env, this is done by
+     * TWEnvironment.start(), agents should use getInstance.
+     */
+    public TWAgentWorkingMemorySingleton(TWEnvironment env) {
         this.mEnv = env;
-        this.objects = new TWAgentPercept[mEnv.getxDimension()][mEnv.getyDimension()];
+        int cells = mEnv.getxDimension() * mEnv.getyDimension();
+        this.perceptType = new byte[cells];
+        this.perceptId = new int[cells];
+        this.perceptTick = new int[cells];
+        this.seenTick = new int[cells];
+        Arrays.fill(seenTick, Integer.MIN_VALUE);
         this.schedule = env.schedule;
         this.memoryGrid = new ObjectGrid2D(mEnv.getxDimension(), mEnv.getyDimension());
+        this.obstacleBits = new TWObstacleBitboard(mEnv.getxDimension(), mEnv.getyDimension());
+        this.objectIndex = new TWSpatialIndex(mEnv.getxDimension(), mEnv.getyDimension(), TWCellPlanes.FUEL_STATION + 1);
+        this.stripes = new Stripe[(mEnv.getyDimension() + STRIPE_ROWS - 1) / STRIPE_ROWS];
+        for (int s = 0; s < stripes.length; s++) {
+            stripes[s] = new Stripe();
+        }
+        this.sensorRange = env.getConfiguration().getDefaultSensorRange();
+        this.lifeTime = env.getConfiguration().getLifeTime();
 
     }
 
+    /**
+     * @return the shared memory of the agents of env
+     */
     public static TWAgentWorkingMemorySingleton getInstance(TWEnvironment env) {
-        if (mInstance == null) {
-            synchronized (TWAgentWorkingMemorySingleton.class) {
-                if (mInstance == null) {
-                    mInstance = new TWAgentWorkingMemorySingleton(env);
-                }
+        return env.getSharedMemory();
+    }
+
+    /**
+     * Called by TWEnvironment.finish(), drops the agents of the finished run.
+     */
+    public void dispose() {
+        agents.clear();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.decayQueue.clear();
+                stripe.refreshQueue.clear();
+                stripe.relayedDecayQueue.clear();
+                stripe.relayedRefreshQueue.clear();
+                stripe.dueCount = 0;
             }
         }
-        return mInstance;
     }
 
     public void addAgent(TWAgent agent) {
@@ -75,111 +203,503 @@ public class TWAgentWorkingMemorySingleton {
      * Also note that currently the agent has no sense of moving objects, so
      * an agent may remember the same object at two locations simultaneously.
      * <p>
-     * Other agents in the grid are sensed and passed to this function. But it
-     * is currently not used for anything. Do remember that an agent sense itself
-     * too.
+     * Agents are not remembered, so none are sensed: the agent bags are
+     * ignored, and TWAgentSensor no longer collects any.
      *
      * @param sensedObjects bag containing the sensed objects
      * @param objectXCoords bag containing x coordinates of objects
      * @param objectYCoords bag containing y coordinates of object
-     * @param sensedAgents  bag containing the sensed agents
-     * @param agentXCoords  bag containing x coordinates of agents
-     * @param agentYCoords  bag containing y coordinates of agents
+     * @param sensedAgents  ignored
+     * @param agentXCoords  ignored
+     * @param agentYCoords  ignored
+     * @deprecated the sensor reads the environment directly, use
+     *             {@link #updateMemory(TWAgent, int)}
      */
-
+    @Deprecated
     public void updateMemory(TWAgent currentAgent, Bag sensedObjects, IntBag objectXCoords, IntBag objectYCoords, Bag sensedAgents, IntBag agentXCoords, IntBag agentYCoords) {
         assert (sensedObjects.size() == objectXCoords.size() && sensedObjects.size() == objectYCoords.size());
         int agentX = currentAgent.getX();
         int agentY = currentAgent.getY();
-        int sensorRange = Parameters.defaultSensorRange;
-        for (int i = agentX - sensorRange; i <= agentX + sensorRange; i++) {
-            for (int j = agentY - sensorRange; j <= agentY + sensorRange; j++) {
-                if (currentAgent.getEnvironment().isInBounds(i, j)) {
-                    boolean isFound = false;
-                    for (Object obj : sensedObjects.objs) {
-                        if (obj instanceof TWEntity && ((TWEntity) obj).getX() == i && ((TWEntity) obj).getY() == j) {
-                            isFound = true;
-                            TWEntity o = (TWEntity) obj;
-
-                            TWAgentPercept previousPercept = objects[o.getX()][o.getY()];
-                            if (previousPercept == null) {
-                                addObject(o);
-
-                            } else {
-                                TWEntity previous = previousPercept.getO();
-                                if (previous == null || !previous.getClass().isInstance(o)) {
-                                    if (previous == null) {
-                                        addObject(o);
-
-                                    } else {
-                                        replaceObject(o);
-
-                                    }
-
-                                } else {
-                                    double observedTime = previousPercept.getT();
-                                    if (schedule.getTime() - observedTime >= Parameters.lifeTime) {
-                                        replaceObject(o);
-                                    } else {
-                                        // do nothing
-                                    }
-                                }
-                            }
-                            break;
-                        }
+        int side = 2 * sensorRange + 1;
+
+        //scatter the sensed objects into the window by location, the first
+        //sensed at a location wins
+        TWEntity[] window = WINDOW.get();
+        if (window.length < side * side) {
+            window = new TWEntity[side * side];
+            WINDOW.set(window);
+        }
+        for (int k = 0; k < sensedObjects.numObjs; k++) {
+            Object obj = sensedObjects.objs[k];
+            if (obj instanceof TWEntity) {
+                int dx = ((TWEntity) obj).getX() - (agentX - sensorRange);
+                int dy = ((TWEntity) obj).getY() - (agentY - sensorRange);
+                if (dx >= 0 && dx < side && dy >= 0 && dy < side && window[dy * side + dx] == null) {
+                    window[dy * side + dx] = (TWEntity) obj;
+                }
+            }
+        }
+
+        int x0 = Math.max(agentX - sensorRange, 0);
+        int x1 = Math.min(agentX + sensorRange, mEnv.getxDimension() - 1);
+        int y0 = Math.max(agentY - sensorRange, 0);
+        int y1 = Math.min(agentY + sensorRange, mEnv.getyDimension() - 1);
+        for (int s = y0 / STRIPE_ROWS; s <= y1 / STRIPE_ROWS; s++) {
+            synchronized (stripes[s]) {
+                for (int j = Math.max(y0, s * STRIPE_ROWS); j <= Math.min(y1, s * STRIPE_ROWS + STRIPE_ROWS - 1); j++) {
+                    for (int i = x0; i <= x1; i++) {
+                        int k = (j - agentY + sensorRange) * side + (i - agentX + sensorRange);
+                        merge(stripes[s], i, j, window[k]);
+                        window[k] = null;
                     }
-                    if (!isFound) {
-                        removeObject(i, j);
-                    } else {
-                        // do nothing
+                }
+            }
+        }
+        decayMemory();
+    }
+
+    /**
+     * Updates the memory with what currentAgent sees within range, read
+     * straight from the environment's object grid. Same result as sensing
+     * the window into bags and calling updateMemory with them, in time
+     * linear in the window.
+     *
+     * @param currentAgent the agent sensing
+     * @param range sensor range, cells with max(|dx|, |dy|) &lt;= range are seen
+     */
+    public void updateMemory(TWAgent currentAgent, int range) {
+        int x0 = Math.max(currentAgent.getX() - range, 0);
+        int x1 = Math.min(currentAgent.getX() + range, mEnv.getxDimension() - 1);
+        int y0 = Math.max(currentAgent.getY() - range, 0);
+        int y1 = Math.min(currentAgent.getY() + range, mEnv.getyDimension() - 1);
+        mergeWindow(x0, y0, x1, y1);
+        decayMemory();
+    }
+
+    /**
+     * Incremental version of updateMemory(currentAgent, range), for an agent
+     * which sensed from previousX, previousY when the environment's change
+     * journal was at previousSequence and has moved at most one cell in each
+     * direction since. Only the newly exposed row and column, the cells
+     * changed since and the percepts due to be refreshed are merged, the
+     * rest of the window is as the last sense left it. The result is the
+     * same as sensing the whole window.
+     *
+     * @return false, having done nothing, if the agent moved further, the
+     * journal no longer holds the changes since previousSequence or merging
+     * them would cost more than sensing the whole window
+     */
+    public boolean updateMemory(TWAgent currentAgent, int range, int previousX, int previousY, long previousSequence) {
+        int x = currentAgent.getX();
+        int y = currentAgent.getY();
+        int dx = x - previousX;
+        int dy = y - previousY;
+        TWChangeJournal journal = mEnv.getChangeJournal();
+        if (Math.abs(dx) > 1 || Math.abs(dy) > 1 || !journal.isAvailable(previousSequence)) {
+            return false;
+        }
+        int x0 = Math.max(x - range, 0);
+        int x1 = Math.min(x + range, mEnv.getxDimension() - 1);
+        int y0 = Math.max(y - range, 0);
+        int y1 = Math.min(y + range, mEnv.getyDimension() - 1);
+
+        int now = now();
+        long due = 0;
+        for (int s = y0 / STRIPE_ROWS; s <= y1 / STRIPE_ROWS; s++) {
+            synchronized (stripes[s]) {
+                collectDue(stripes[s], now);
+                due += stripes[s].dueCount;
+            }
+        }
+        long side = 2L * range + 1;
+        long changes = journal.getSequence() - previousSequence;
+        if ((Math.abs(dx) + Math.abs(dy)) * side + changes + due >= side * side) {
+            return false;
+        }
+
+        //the column and row which came into view
+        int column = x + dx * range;
+        if (dx != 0 && column >= x0 && column <= x1) {
+            mergeWindow(column, y0, column, y1);
+        }
+        int row = y + dy * range;
+        if (dy != 0 && row >= y0 && row <= y1) {
+            mergeWindow(x0, row, x1, row);
+        }
+
+        //cells which changed or whose percept is due in the rest of the window
+        ObjectGrid2D objectGrid = mEnv.getObjectGrid();
+        for (long seq = previousSequence; seq < journal.getSequence(); seq++) {
+            int cell = journal.getCell(seq);
+            int i = mEnv.cellX(cell);
+            int j = mEnv.cellY(cell);
+            if (i >= x0 && i <= x1 && j >= y0 && j <= y1) {
+                Stripe stripe = stripes[j / STRIPE_ROWS];
+                synchronized (stripe) {
+                    merge(stripe, i, j, (TWEntity) objectGrid.get(i, j));
+                }
+            }
+        }
+        for (int s = y0 / STRIPE_ROWS; s <= y1 / STRIPE_ROWS; s++) {
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                for (int k = 0; k < stripe.dueCount; k++) {
+                    int i = mEnv.cellX(stripe.dueCells[k]);
+                    int j = mEnv.cellY(stripe.dueCells[k]);
+                    if (i >= x0 && i <= x1 && j >= y0 && j <= y1) {
+                        merge(stripe, i, j, (TWEntity) objectGrid.get(i, j));
                     }
-                } else {
-                    continue;
+                }
+                //the rest of the window is as seen now too
+                for (int j = Math.max(y0, s * STRIPE_ROWS); j <= Math.min(y1, s * STRIPE_ROWS + STRIPE_ROWS - 1); j++) {
+                    Arrays.fill(seenTick, mEnv.cellIndex(x0, j), mEnv.cellIndex(x1, j) + 1, now);
                 }
             }
         }
         decayMemory();
+        return true;
+    }
+
+    /**
+     * Merges the object grid cells of the given (clipped) window, taking
+     * the lock of one stripe at a time.
+     */
+    private void mergeWindow(int x0, int y0, int x1, int y1) {
+        ObjectGrid2D objectGrid = mEnv.getObjectGrid();
+        for (int s = y0 / STRIPE_ROWS; s <= y1 / STRIPE_ROWS; s++) {
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                for (int j = Math.max(y0, s * STRIPE_ROWS); j <= Math.min(y1, s * STRIPE_ROWS + STRIPE_ROWS - 1); j++) {
+                    for (int i = x0; i <= x1; i++) {
+                        merge(stripe, i, j, (TWEntity) objectGrid.get(i, j));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Once per time step and stripe, moves the percepts which have just
+     * become old enough for mergeCell to refresh them from the refresh queue
+     * to dueCells. A full sense refreshes them when they are in view, an
+     * incremental one must visit them explicitly. Percepts which are not in
+     * view when they become due can only come into view again at the edge
+     * of a window, where they are merged anyway. The stripe's lock must be
+     * held.
+     */
+    private void collectDue(Stripe stripe, int now) {
+        if (now == stripe.dueTick) {
+            return;
+        }
+        stripe.dueTick = now;
+        stripe.dueCount = 0;
+        collectDue(stripe, stripe.refreshQueue, now);
+        collectDue(stripe, stripe.relayedRefreshQueue, now);
+    }
+
+    private void collectDue(Stripe stripe, TWPerceptDecayQueue refreshQueue, int now) {
+        while (!refreshQueue.isEmpty() && now - refreshQueue.peekTick() >= lifeTime) {
+            int tick = refreshQueue.peekTick();
+            int cell = refreshQueue.poll();
+            if (perceptId[cell] != TWCellPlanes.NO_ENTITY && perceptTick[cell] == tick) {
+                addDue(stripe, cell);
+            }
+        }
+    }
+
+    private void addDue(Stripe stripe, int cell) {
+        if (stripe.dueCount == stripe.dueCells.length) {
+            stripe.dueCells = Arrays.copyOf(stripe.dueCells, 2 * stripe.dueCount);
+        }
+        stripe.dueCells[stripe.dueCount++] = cell;
+    }
+
+    /**
+     * Merges what was seen at x, y into memory: o is remembered if nothing or
+     * an object of another class was remembered there, or if the percept
+     * there is at least lifeTime old; if o is null the cell is forgotten.
+     *
+     * @param o the entity seen at x, y or null if the cell was seen empty
+     */
+    public void mergeCell(int x, int y, TWEntity o) {
+        Stripe stripe = stripes[y / STRIPE_ROWS];
+        synchronized (stripe) {
+            merge(stripe, x, y, o);
+        }
     }
 
+    /**
+     * mergeCell with the lock of the stripe of x, y held.
+     */
+    private void merge(Stripe stripe, int x, int y, TWEntity o) {
+        int cell = mEnv.cellIndex(x, y);
+        seenTick[cell] = now();
+        if (o == null) {
+            remove(stripe, x, y);
+            return;
+        }
+        if (perceptId[cell] == TWCellPlanes.NO_ENTITY) {
+            replace(stripe, o);
+        } else if (perceptType[cell] != TWCellPlanes.typeOf(o)) {
+            replace(stripe, o);
+        } else if (now() - perceptTick[cell] >= lifeTime) {
+            replace(stripe, o);
+        }
+    }
+
+    /**
+     * Takes objects last seen more than MAX_TIME ago off the memory grid,
+     * their percepts stay. Only percepts which have gone stale since the last
+     * call are visited, taken from the front of the decay queues, and each
+     * stripe is decayed once per time step: objects seen since the first
+     * call of a step cannot be stale.
+     */
     public void decayMemory() {
-        // put some decay on other memory pieces (this will require complete
-        // iteration over memory though, so expensive.
-        //This is a simple example of how to do this.
-        for (int x = 0; x < this.objects.length; x++) {
-            for (int y = 0; y < this.objects[x].length; y++) {
-                TWAgentPercept currentMemory = objects[x][y];
-                if (currentMemory == null) {
-                    // do nothing
-                } else if (currentMemory.getO() instanceof TWObject && currentMemory.getT() < schedule.getTime() - MAX_TIME) {
-                    memoryGrid.set(x, y, null);
-                    memorySize--;
+        int now = now();
+        int oldest = now - MAX_TIME;
+        for (Stripe stripe : stripes) {
+            if (stripe.decayTick == now) {
+                continue;
+            }
+            synchronized (stripe) {
+                if (stripe.decayTick == now) {
+                    continue;
+                }
+                collectDue(stripe, now);
+                decay(stripe, stripe.decayQueue, oldest);
+                decay(stripe, stripe.relayedDecayQueue, oldest);
+                stripe.decayTick = now;
+            }
+        }
+    }
+
+    private void decay(Stripe stripe, TWPerceptDecayQueue decayQueue, int oldest) {
+        while (!decayQueue.isEmpty() && decayQueue.peekTick() < oldest) {
+            int cell = decayQueue.poll();
+            // the entry may be out of date, only the cell's current percept counts
+            if (perceptId[cell] != TWCellPlanes.NO_ENTITY && isObjectType(perceptType[cell]) && perceptTick[cell] < oldest) {
+                setMemoryCell(stripe, mEnv.cellX(cell), mEnv.cellY(cell), null);
+            }
+        }
+    }
+
+    /**
+     * Merges a sensor window relayed by a teammate, seen at tick: the
+     * objects with the given cells, types and ids, records from up to to in
+     * row by row order, and the rest of x0..x1, y0..y1 empty. Cells sensed
+     * at or after tick are left as they are, the others take what the window
+     * shows, with tick as the time of the percept. Objects are looked up on
+     * the environment's grid by cell, type and id; cells whose object is no
+     * longer there are skipped, as what became of it is not known. The lock
+     * of one stripe is taken at a time.
+     *
+     * Percepts from an earlier tick are queued in tick order apart from
+     * those sensed now, so they refresh and decay when they are due.
+     */
+    void mergeRelayed(int x0, int y0, int x1, int y1, int tick, int[] cells, byte[] types, int[] ids, int from, int to) {
+        ObjectGrid2D objectGrid = mEnv.getObjectGrid();
+        int record = from;
+        int next = (record < to) ? cells[record] : -1;
+        for (int s = y0 / STRIPE_ROWS; s <= y1 / STRIPE_ROWS; s++) {
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                for (int j = Math.max(y0, s * STRIPE_ROWS); j <= Math.min(y1, s * STRIPE_ROWS + STRIPE_ROWS - 1); j++) {
+                    for (int i = x0; i <= x1; i++) {
+                        int cell = mEnv.cellIndex(i, j);
+                        TWEntity seen = null;
+                        if (cell == next) {
+                            Object o = objectGrid.get(i, j);
+                            record++;
+                            next = (record < to) ? cells[record] : -1;
+                            if (!(o instanceof TWEntity) || TWCellPlanes.typeOf(o) != types[record - 1]
+                                    || ((TWEntity) o).getId() != ids[record - 1]) {
+                                continue;
+                            }
+                            seen = (TWEntity) o;
+                        }
+                        if (seenTick[cell] >= tick) {
+                            continue;
+                        }
+                        seenTick[cell] = tick;
+                        if (seen != null) {
+                            replace(stripe, seen, tick);
+                        } else if (perceptId[cell] != TWCellPlanes.NO_ENTITY) {
+                            remove(stripe, i, j);
+                        }
+                    }
                 }
             }
         }
     }
 
     public void replaceObject(TWEntity entity) {
-        objects[entity.getX()][entity.getY()] = new TWAgentPercept(entity, schedule.getTime());
-        memoryGrid.set(entity.getX(), entity.getY(), entity);
+        Stripe stripe = stripes[entity.getY() / STRIPE_ROWS];
+        synchronized (stripe) {
+            replace(stripe, entity);
+        }
+    }
+
+    private void replace(Stripe stripe, TWEntity entity) {
+        replace(stripe, entity, now());
+    }
+
+    /**
+     * Records entity as seen at tick, with the lock of its stripe held.
+     * Percepts of earlier ticks, relayed ones, go to the relayed queues.
+     */
+    private void replace(Stripe stripe, TWEntity entity, int tick) {
+        int cell = mEnv.cellIndex(entity.getX(), entity.getY());
+        int now = now();
+        perceptType[cell] = TWCellPlanes.typeOf(entity);
+        perceptId[cell] = entity.getId();
+        perceptTick[cell] = tick;
+        if (tick == now) {
+            if (entity instanceof TWObject) {
+                stripe.decayQueue.add(cell, tick);
+            }
+            stripe.refreshQueue.add(cell, tick);
+        } else {
+            if (entity instanceof TWObject) {
+                stripe.relayedDecayQueue.addInOrder(cell, tick);
+            }
+            if (stripe.dueTick == now && now - tick >= lifeTime) {
+                // already due, and this step's due cells collected
+                addDue(stripe, cell);
+            } else {
+                stripe.relayedRefreshQueue.addInOrder(cell, tick);
+            }
+        }
+        setMemoryCell(stripe, entity.getX(), entity.getY(), entity);
+        obstacleBits.set(entity.getX(), entity.getY(), entity instanceof TWObstacle);
     }
 
     public void addObject(TWEntity entity) {
         replaceObject(entity);
-        memorySize++;
     }
 
     public void removeObject(int x, int y) {
-        if (objects[x][y] != null) {
-            memorySize--;
+        Stripe stripe = stripes[y / STRIPE_ROWS];
+        synchronized (stripe) {
+            remove(stripe, x, y);
+        }
+    }
+
+    private void remove(Stripe stripe, int x, int y) {
+        perceptId[mEnv.cellIndex(x, y)] = TWCellPlanes.NO_ENTITY;
+        setMemoryCell(stripe, x, y, null);
+        obstacleBits.clear(x, y);
+    }
+
+    /**
+     * Takes the object at x, y off the memory grid, e.g. after picking it up,
+     * its percept stays until the cell is sensed again.
+     */
+    public void forgetObject(int x, int y) {
+        Stripe stripe = stripes[y / STRIPE_ROWS];
+        synchronized (stripe) {
+            setMemoryCell(stripe, x, y, null);
+        }
+    }
+
+    /**
+     * Sets a cell of the memory grid, with the lock of its stripe held.
+     */
+    private void setMemoryCell(Stripe stripe, int x, int y, TWEntity entity) {
+        if (memoryGrid.get(x, y) == null) {
+            if (entity != null) {
+                stripe.size++;
+            }
+        } else if (entity == null) {
+            stripe.size--;
+        }
+        memoryGrid.set(x, y, entity);
+        byte type = TWCellPlanes.typeOf(entity);
+        if (objectIndex.type(x, y) != type) {
+            synchronized (objectIndex) {
+                objectIndex.set(x, y, type);
+            }
         }
-        objects[x][y] = null;
-        memoryGrid.set(x, y, null);
     }
 
     public void removeObject(TWEntity o) {
         removeObject(o.getX(), o.getY());
     }
 
+    /**
+     * @return the current time step as a tick
+     */
+    private int now() {
+        return (int) schedule.getTime();
+    }
+
+    private static boolean isObjectType(byte type) {
+        return type == TWCellPlanes.TILE || type == TWCellPlanes.HOLE || type == TWCellPlanes.OBSTACLE;
+    }
+
+    /**
+     * @return true if something is remembered to have been seen at x, y,
+     * whether or not it has since decayed from the memory grid
+     */
+    public boolean hasPercept(int x, int y) {
+        return perceptId[mEnv.cellIndex(x, y)] != TWCellPlanes.NO_ENTITY;
+    }
+
+    /**
+     * @return the TWCellPlanes type of what was last seen at x, y, EMPTY if
+     * nothing is remembered
+     */
+    public byte getPerceptType(int x, int y) {
+        int cell = mEnv.cellIndex(x, y);
+        return (perceptId[cell] == TWCellPlanes.NO_ENTITY) ? TWCellPlanes.EMPTY : perceptType[cell];
+    }
+
+    /**
+     * @return the id of the entity last seen at x, y or NO_ENTITY
+     */
+    public int getPerceptId(int x, int y) {
+        return perceptId[mEnv.cellIndex(x, y)];
+    }
+
+    /**
+     * @return the time at which x, y was last seen holding the entity of
+     * getPerceptId, only meaningful if hasPercept(x, y)
+     */
+    public double getPerceptTime(int x, int y) {
+        return perceptTick[mEnv.cellIndex(x, y)];
+    }
+
+    /**
+     * Returns the percept of x, y as a TWAgentPercept, a copy made on each
+     * call, or null if nothing is remembered there or the entity seen can no
+     * longer be found, see getPerceptEntity.
+     */
+    public TWAgentPercept getPercept(int x, int y) {
+        TWEntity o = getPerceptEntity(x, y);
+        return (o == null) ? null : new TWAgentPercept(o, getPerceptTime(x, y));
+    }
+
+    /**
+     * Returns the entity last seen at x, y. Percepts hold ids only, so the
+     * entity is looked up on the memory grid and then in the environment;
+     * if it is on neither, e.g. it decayed from memory and has since
+     * expired, null is returned.
+     */
+    public TWEntity getPerceptEntity(int x, int y) {
+        int id = perceptId[mEnv.cellIndex(x, y)];
+        if (id == TWCellPlanes.NO_ENTITY) {
+            return null;
+        }
+        Object remembered = memoryGrid.get(x, y);
+        if (remembered instanceof TWEntity && ((TWEntity) remembered).getId() == id) {
+            return (TWEntity) remembered;
+        }
+        Object actual = mEnv.getObjectGrid().get(x, y);
+        if (actual instanceof TWEntity && ((TWEntity) actual).getId() == id) {
+            return (TWEntity) actual;
+        }
+        return null;
+    }
+
     /**
      * Finds a nearby tile we have seen less than threshold timesteps ago
      *
@@ -200,10 +720,16 @@ public class TWAgentWorkingMemorySingleton {
 
 
     /**
-     * Returns the number of items currently in memory
+     * Returns the number of objects currently on the memory grid
      */
     public int getMemorySize() {
-        return memorySize;
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
     }
 
 
@@ -230,29 +756,35 @@ public class TWAgentWorkingMemorySingleton {
         //If we cannot find an object which we have seen recently, then we want
         //the one with maxTimestamp
         double maxTimestamp = 0;
-        TWObject o = null;
         double time = 0;
         TWObject ret = null;
+        byte wanted = indexedType(type);
         int x, y;
+        if (spiral == null) {
+            spiral = new NeighbourSpiral(sensorRange * 4).spiral();
+        }
         for (Int2D offset : spiral) {
             x = offset.x + sx;
             y = offset.y + sy;
 
-            if (mEnv.isInBounds(x, y) && objects[x][y] != null) {
-                o = (TWObject) objects[x][y].getO();//get mem object
-                if (type.isInstance(o)) {//if it's not the type we're looking for do nothing
+            //if it's not the type we're looking for do nothing
+            if (mEnv.isInBounds(x, y) && getPerceptType(x, y) == wanted) {
+                //the entity seen, null if it can no longer be found
+                TWEntity o = getPerceptEntity(x, y);
+                if (o == null) {
+                    continue;
+                }
 
-                    time = objects[x][y].getT();//get time of memory
+                time = getPerceptTime(x, y);//get time of memory
 
-                    if (schedule.getTime() - time <= threshold) {
-                        //if we found one satisfying time, then return
-                        return o;
-                    } else if (time > maxTimestamp) {
-                        //otherwise record the timestamp and the item in case
-                        //it's the most recent one we see
-                        ret = o;
-                        maxTimestamp = time;
-                    }
+                if (schedule.getTime() - time <= threshold) {
+                    //if we found one satisfying time, then return
+                    return (TWObject) o;
+                } else if (time > maxTimestamp) {
+                    //otherwise record the timestamp and the item in case
+                    //it's the most recent one we see
+                    ret = (TWObject) o;
+                    maxTimestamp = time;
                 }
             }
         }
@@ -262,7 +794,85 @@ public class TWAgentWorkingMemorySingleton {
         return ret;
     }
 
+    /**
+     * Returns the remembered object of class clazz nearest (Manhattan) to the
+     * agent, of several at the same distance the one with the largest x, then
+     * largest y. Tiles, holes, obstacles and the fuel station are found
+     * through the spatial index, other classes by scanning the memory grid.
+     *
+     * @return the nearest object or null if none is remembered
+     */
     public TWEntity getClosestObject(TWAgent agent, Class<?> clazz) {
+        int type = indexedType(clazz);
+        if (type == TWCellPlanes.EMPTY) {
+            return scanClosestObject(agent, clazz);
+        }
+        int cell = objectIndex.nearest(type, agent.getX(), agent.getY());
+        return (cell < 0) ? null : (TWEntity) memoryGrid.get(mEnv.cellX(cell), mEnv.cellY(cell));
+    }
+
+    /**
+     * Returns up to k remembered objects of class clazz nearest to x, y,
+     * nearest first, ordered as getClosestObject.
+     */
+    public Bag getClosestObjects(int x, int y, Class<?> clazz, int k) {
+        Bag closest = new Bag(k);
+        int type = indexedType(clazz);
+        if (type == TWCellPlanes.EMPTY) {
+            // too rare to index, pick from all remembered objects
+            Bag all = new Bag();
+            for (int i = 0; i < mEnv.getxDimension(); i++) {
+                for (int j = 0; j < mEnv.getyDimension(); j++) {
+                    if (clazz.isInstance(memoryGrid.get(i, j))) {
+                        all.add(memoryGrid.get(i, j));
+                    }
+                }
+            }
+            final int fromX = x;
+            final int fromY = y;
+            all.sort(new java.util.Comparator<Object>() {
+                @Override
+                public int compare(Object a, Object b) {
+                    TWEntity ea = (TWEntity) a;
+                    TWEntity eb = (TWEntity) b;
+                    int c = Double.compare(ea.getDistanceTo(fromX, fromY), eb.getDistanceTo(fromX, fromY));
+                    if (c == 0) {
+                        c = (ea.getX() != eb.getX()) ? eb.getX() - ea.getX() : eb.getY() - ea.getY();
+                    }
+                    return c;
+                }
+            });
+            for (int i = 0; i < k && i < all.numObjs; i++) {
+                closest.add(all.objs[i]);
+            }
+            return closest;
+        }
+        int[] cells = new int[k];
+        int found = objectIndex.nearest(type, x, y, cells);
+        for (int i = 0; i < found; i++) {
+            closest.add(memoryGrid.get(mEnv.cellX(cells[i]), mEnv.cellY(cells[i])));
+        }
+        return closest;
+    }
+
+    /**
+     * @return the index type holding exactly the instances of clazz, EMPTY if
+     * clazz is not indexed
+     */
+    private static byte indexedType(Class<?> clazz) {
+        if (clazz == TWTile.class) {
+            return TWCellPlanes.TILE;
+        } else if (clazz == TWHole.class) {
+            return TWCellPlanes.HOLE;
+        } else if (clazz == TWObstacle.class) {
+            return TWCellPlanes.OBSTACLE;
+        } else if (clazz == TWFuelStation.class) {
+            return TWCellPlanes.FUEL_STATION;
+        }
+        return TWCellPlanes.EMPTY;
+    }
+
+    private TWEntity scanClosestObject(TWAgent agent, Class<?> clazz) {
         double minDis = mEnv.getxDimension() + mEnv.getyDimension() - 2;
         TWEntity closestEntity = null;
         for (int i = 0; i < mEnv.getxDimension(); i++) {
@@ -274,12 +884,6 @@ public class TWAgentWorkingMemorySingleton {
                 }
             }
         }
-//        if (closestEntity != null){
-//            System.out.println(agent.getName()+":");
-//            System.out.println("closest entity: " + closestEntity.getClass() + " (" + closestEntity.getX() + "," +
-//                    closestEntity.getY() + ")" + schedule.getSteps());
-//        }
-
         return closestEntity;
     }
 
@@ -291,17 +895,65 @@ public class TWAgentWorkingMemorySingleton {
      * @return true if the cell is blocked in our memory
      */
     public boolean isCellBlocked(int tx, int ty) {
+        //no memory at all is not blocked, so only remembered obstacles are set
+        return obstacleBits.get(tx, ty);
+    }
 
-        //no memory at all, so assume not blocked
-        if (objects[tx][ty] == null) {
-            return false;
-        }
+    /**
+     * The remembered obstacles as a bitboard, for testing whole rows or
+     * neighbourhoods at once.
+     */
+    public TWObstacleBitboard getObstacleBitboard() {
+        return obstacleBits;
+    }
 
-        TWEntity e = (TWEntity) objects[tx][ty].getO();
-        //is it an obstacle?
-        return (e instanceof TWObstacle);
+    /**
+     * Checks that the memory grid, percepts, obstacle bits, spatial index
+     * and object counts agree with each other, for stress testing
+     * concurrent sensing. Must not overlap writes.
+     *
+     * @throws IllegalStateException describing the first disagreement found
+     */
+    public void checkConsistency() {
+        int[] typeCounts = new int[TWCellPlanes.FUEL_STATION + 1];
+        for (int s = 0; s < stripes.length; s++) {
+            int size = 0;
+            for (int y = s * STRIPE_ROWS; y < Math.min((s + 1) * STRIPE_ROWS, mEnv.getyDimension()); y++) {
+                for (int x = 0; x < mEnv.getxDimension(); x++) {
+                    int cell = mEnv.cellIndex(x, y);
+                    Object remembered = memoryGrid.get(x, y);
+                    byte type = TWCellPlanes.typeOf(remembered);
+                    if (objectIndex.type(x, y) != type) {
+                        throw new IllegalStateException("Index type " + objectIndex.type(x, y) + " at " + x + "," + y + " holding " + remembered);
+                    }
+                    if (remembered != null) {
+                        size++;
+                        typeCounts[type]++;
+                        if (perceptId[cell] != ((TWEntity) remembered).getId() || perceptType[cell] != type) {
+                            throw new IllegalStateException("Percept " + perceptId[cell] + " at " + x + "," + y + " holding " + remembered);
+                        }
+                    }
+                    boolean obstacle = perceptId[cell] != TWCellPlanes.NO_ENTITY && perceptType[cell] == TWCellPlanes.OBSTACLE;
+                    if (obstacleBits.get(x, y) != obstacle) {
+                        throw new IllegalStateException("Obstacle bit at " + x + "," + y);
+                    }
+                }
+            }
+            if (stripes[s].size != size) {
+                throw new IllegalStateException("Stripe " + s + " counts " + stripes[s].size + " objects, holds " + size);
+            }
+        }
+        for (int t = 1; t < typeCounts.length; t++) {
+            if (objectIndex.count(t) != typeCounts[t]) {
+                throw new IllegalStateException("Index counts " + objectIndex.count(t) + " of type " + t + ", memory holds " + typeCounts[t]);
+            }
+        }
     }
 
+    /**
+     * The remembered objects by location, for reading only, memory is
+     * changed through the methods of this class.
+     */
     public ObjectGrid2D getMemoryGrid() {
         return this.memoryGrid;
     }
@@ -0,0 +1,175 @@
+package tileworld.agent;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TWMessageBus
+ *
+ * Description:
+ *
+ * Delivers messages between the agents of an environment. Every agent has an
+ * inbox, addressed by the agent's index (its position in
+ * TWEnvironment.getAgents(), see TWAgent.getIndex), and messages for
+ * everyone go on named broadcast channels, channel ALL being open from the
+ * start. An agent reads its inbox and the channels it cares about, never
+ * the messages meant for others, so reading costs as much as the messages
+ * actually addressed to it, however large the team.
+ *
+ * Mailboxes are double buffered by time step: what is sent during step t is
+ * readable throughout step t + 1, while step t + 1 sends go to the other
+ * buffer. Buffers are swapped by advance(), called by the environment at
+ * the start of every step; nothing is copied, a buffer is only cleared when
+ * it is written again two steps later.
+ *
+ * Sending to one mailbox from several threads at once is safe; reading is
+ * lock free and sees the previous step's messages only, so it can run
+ * alongside sending.
+ */
+public class TWMessageBus {
+
+    /**
+     * Channel every bus has, for messages to the whole team.
+     */
+    public static final int ALL = 0;
+
+    private final List<Mailbox> inboxes = new ArrayList<Mailbox>();
+    private final List<Mailbox> channels = new ArrayList<Mailbox>();
+    private final Map<String, Integer> channelNames = new HashMap<String, Integer>();
+    /** Current time step of the bus, sends are stamped with it */
+    private volatile long tick;
+
+    public TWMessageBus() {
+        openChannel("all");
+    }
+
+    /**
+     * Gives agent the next index and an inbox, called by the environment as
+     * it creates its agents.
+     *
+     * @return the agent's index
+     */
+    public int register(TWAgent agent) {
+        agent.setIndex(inboxes.size());
+        inboxes.add(new Mailbox());
+        return agent.getIndex();
+    }
+
+    /**
+     * @return the number of registered agents
+     */
+    public int getRecipientCount() {
+        return inboxes.size();
+    }
+
+    /**
+     * Returns the channel of the given name, opening it if needed.
+     *
+     * @return the channel's id
+     */
+    public int openChannel(String name) {
+        synchronized (channelNames) {
+            Integer id = channelNames.get(name);
+            if (id == null) {
+                id = channels.size();
+                channels.add(new Mailbox());
+                channelNames.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Starts a new time step: the messages sent during the step just ended
+     * become readable, those of the step before are dropped.
+     */
+    public void advance() {
+        tick++;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Sends m to the agent with index to, readable from the next step.
+     */
+    public void send(int to, Message m) {
+        inboxes.get(to).add(m, tick);
+    }
+
+    /**
+     * Sends m to every reader of the channel, readable from the next step.
+     */
+    public void publish(int channel, Message m) {
+        channels.get(channel).add(m, tick);
+    }
+
+    /**
+     * Publishes m on channel ALL.
+     */
+    public void broadcast(Message m) {
+        publish(ALL, m);
+    }
+
+    /**
+     * @return the messages sent to the agent with the given index during the
+     * previous step, a view which is valid until the next advance()
+     */
+    public List<Message> inbox(int index) {
+        return inboxes.get(index);
+    }
+
+    /**
+     * @return the messages published on the channel during the previous
+     * step, a view which is valid until the next advance()
+     */
+    public List<Message> channel(int channel) {
+        return channels.get(channel);
+    }
+
+    /**
+     * Two message buffers written in alternate steps, the list itself is
+     * the buffer written in the step before the bus's current one.
+     */
+    private final class Mailbox extends AbstractList<Message> {
+
+        private final Message[][] buffers = {new Message[4], new Message[4]};
+        private final int[] counts = new int[2];
+        /** Step each buffer was last written in */
+        private final long[] written = {-1, -1};
+
+        synchronized void add(Message m, long now) {
+            int b = (int) (now & 1);
+            if (written[b] != now) {
+                // last written two or more steps ago, its messages are gone
+                Arrays.fill(buffers[b], 0, counts[b], null);
+                counts[b] = 0;
+                written[b] = now;
+            }
+            if (counts[b] == buffers[b].length) {
+                buffers[b] = Arrays.copyOf(buffers[b], 2 * counts[b]);
+            }
+            buffers[b][counts[b]++] = m;
+        }
+
+        @Override
+        public int size() {
+            long previous = tick - 1;
+            int b = (int) (previous & 1);
+            return (written[b] == previous) ? counts[b] : 0;
+        }
+
+        @Override
+        public Message get(int i) {
+            if (i < 0 || i >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size());
+            }
+            return buffers[(int) ((tick - 1) & 1)][i];
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package tileworld.agent;
+
+import java.util.Arrays;
+import sim.field.grid.ObjectGrid2D;
+import tileworld.environment.TWCellPlanes;
+import tileworld.environment.TWEntity;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * TWObservationPayload
+ *
+ * Description:
+ *
+ * What an agent saw, in primitive arrays, to be sent in a Message instead of
+ * a Map&lt;Int2D, Object&gt;. A payload holds sensor windows: for each the
+ * bounds and the tick it was seen at, and a record for each object in it,
+ * in row by row order: the cell (y * width + x, as
+ * TWEnvironment.cellIndex), the TWCellPlanes type and the id of the
+ * entity. Cells of a window without a record were seen empty.
+ *
+ * Payloads are meant to be reused: clear() keeps the arrays, so once they
+ * have grown to a window's worth, encoding allocates nothing. A payload
+ * sent on the message bus is read during the next step, so a sender
+ * reusing payloads every step needs two, alternating, see
+ * TWMessageBus.
+ */
+public class TWObservationPayload {
+
+    /** Per window: x0, y0, x1, y1, tick and the number of its first record */
+    private int[] windows = new int[6];
+    private int windowCount;
+    private int[] cells = new int[16];
+    private byte[] types = new byte[16];
+    private int[] ids = new int[16];
+    private int size;
+
+    /**
+     * Empties the payload, keeping its arrays.
+     */
+    public void clear() {
+        windowCount = 0;
+        size = 0;
+    }
+
+    /**
+     * @return the number of object records
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getWindowCount() {
+        return windowCount;
+    }
+
+    public int getCell(int record) {
+        return cells[record];
+    }
+
+    public byte getType(int record) {
+        return types[record];
+    }
+
+    public int getId(int record) {
+        return ids[record];
+    }
+
+    /**
+     * @return the tick the given window was seen at
+     */
+    public int getTick(int window) {
+        return windows[6 * window + 4];
+    }
+
+    /**
+     * Adds the window of the given range around the agent, as its sensor
+     * sees it now.
+     */
+    public void encodeWindow(TWAgent agent, int range) {
+        TWEnvironment env = agent.getEnvironment();
+        encodeWindow(env, agent.getX() - range, agent.getY() - range,
+                agent.getX() + range, agent.getY() + range, (int) env.schedule.getTime());
+    }
+
+    /**
+     * Adds the objects of env's grid within x0..x1, y0..y1 (clipped to the
+     * grid) as seen at tick.
+     */
+    public void encodeWindow(TWEnvironment env, int x0, int y0, int x1, int y1, int tick) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, env.getxDimension() - 1);
+        y1 = Math.min(y1, env.getyDimension() - 1);
+        if (6 * windowCount + 6 > windows.length) {
+            windows = Arrays.copyOf(windows, 2 * windows.length);
+        }
+        int w = 6 * windowCount++;
+        windows[w] = x0;
+        windows[w + 1] = y0;
+        windows[w + 2] = x1;
+        windows[w + 3] = y1;
+        windows[w + 4] = tick;
+        windows[w + 5] = size;
+        ObjectGrid2D grid = env.getObjectGrid();
+        for (int j = y0; j <= y1; j++) {
+            for (int i = x0; i <= x1; i++) {
+                Object o = grid.get(i, j);
+                if (o instanceof TWEntity) {
+                    add(env.cellIndex(i, j), TWCellPlanes.typeOf(o), ((TWEntity) o).getId());
+                }
+            }
+        }
+    }
+
+    private void add(int cell, byte type, int id) {
+        if (size == cells.length) {
+            cells = Arrays.copyOf(cells, 2 * size);
+            types = Arrays.copyOf(types, 2 * size);
+            ids = Arrays.copyOf(ids, 2 * size);
+        }
+        cells[size] = cell;
+        types[size] = type;
+        ids[size] = id;
+        size++;
+    }
+
+    /**
+     * Merges the windows into memory, as of the ticks they were seen at:
+     * cells the memory has sensed at or after a window's tick are left as
+     * they are. Objects are looked up in the environment by cell, type and
+     * id; those no longer there are skipped too, as what became of them is
+     * not known.
+     *
+     * @see TWAgentWorkingMemorySingleton#mergeRelayed
+     */
+    public void decodeInto(TWAgentWorkingMemorySingleton memory, TWEnvironment env) {
+        for (int w = 0; w < 6 * windowCount; w += 6) {
+            int end = (w + 6 < 6 * windowCount) ? windows[w + 11] : size;
+            memory.mergeRelayed(windows[w], windows[w + 1], windows[w + 2], windows[w + 3], windows[w + 4],
+                    cells, types, ids, windows[w + 5], end);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package tileworld.agent;
+
+import ec.util.MersenneTwisterFast;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * TWParallelStepper
+ *
+ * Description:
+ *
+ * Steps all agents of an environment in phases, in place of one sense and
+ * one think-act steppable per agent:
+ *
+ * 1. every agent senses, on the worker threads,
+ * 2. every agent communicates, in creation order,
+ * 3. every agent thinks, on the worker threads,
+ * 4. every agent acts on its thought, in an order shuffled every step.
+ *
+ * Sensing only writes the shared memory, which is safe to write from
+ * several threads, and thinking only reads it and the environment. All
+ * changes to the world are made by the acts, one agent after another on
+ * the stepping thread. Who gets a tile two agents went for, or a cell two
+ * agents move into, is decided by the order of the acts, shuffled every
+ * step with the environment's generator as MASON's schedule orders the
+ * agents' steppables in the one-at-a-time mode, so no agent is favoured
+ * for the whole run.
+ * Each agent draws its random numbers from its own generator, seeded from
+ * the environment's seed and the agent's position in the list, so a run
+ * gives the same result whatever the number of threads.
+ *
+ * Thoughts are made before any agent acts, so an act may find its thought
+ * out of date, e.g. the tile already taken; acts must check, as the
+ * environment's canPickupTile and friends do.
+ */
+public class TWParallelStepper implements Steppable {
+
+    private final List<TWAgent> agents;
+    private final int threads;
+    /** Worker threads, null when stepping on the caller's thread only */
+    private final ExecutorService pool;
+    private final List<Callable<Void>> workers;
+    /** Next agent to be claimed by a worker in the current phase */
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean thinking;
+    private TWThought[] thoughts = new TWThought[0];
+    /** Shuffles the act order */
+    private final MersenneTwisterFast random;
+    /** The agents' positions in the list, in the order they act */
+    private int[] order = new int[0];
+
+    /**
+     * @param env the environment the agents are in, its seed seeds the
+     * agents' generators
+     * @param agents the agents to step
+     * @param threads number of threads to sense and think on, 1 to do it all
+     * on the stepping thread
+     */
+    public TWParallelStepper(TWEnvironment env, List<TWAgent> agents, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.agents = agents;
+        this.threads = threads;
+        this.random = env.random;
+        long seed = env.seed();
+        for (int i = 0; i < agents.size(); i++) {
+            agents.get(i).setRandom(new MersenneTwisterFast(new int[]{(int) seed, (int) (seed >>> 32), i}));
+        }
+        if (threads == 1) {
+            this.pool = null;
+            this.workers = null;
+        } else {
+            this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TWParallelStepper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.workers = new ArrayList<Callable<Void>>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        work();
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public void step(SimState state) {
+        int n = agents.size();
+        if (thoughts.length < n) {
+            thoughts = new TWThought[n];
+        }
+        runPhase(false);
+        for (int i = 0; i < n; i++) {
+            agents.get(i).communicate();
+        }
+        runPhase(true);
+        if (order.length != n) {
+            order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        for (int k = 0; k < n; k++) {
+            int i = order[k];
+            agents.get(i).act(thoughts[i]);
+            thoughts[i] = null;
+        }
+    }
+
+    /**
+     * Stops the worker threads, the stepper must not be stepped again.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Senses or thinks for every agent and returns once all are done.
+     */
+    private void runPhase(boolean think) {
+        thinking = think;
+        next.set(0);
+        if (pool == null) {
+            work();
+            return;
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(workers)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stepping agents", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Claims agents one by one until none are left, so slow thinkers do not
+     * hold up a whole share of the agents.
+     */
+    private void work() {
+        boolean think = thinking;
+        int n = agents.size();
+        for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+            TWAgent agent = agents.get(i);
+            if (think) {
+                thoughts[i] = agent.think();
+            } else {
+                agent.sense();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package tileworld.agent;
+
+/**
+ * TWPerceptDecayQueue
+ *
+ * Description:
+ *
+ * First in first out queue of (cell, tick) pairs, one per object percept
+ * recorded in memory. Percepts are recorded in tick order, so the queue is
+ * also ordered by the tick at which they go stale and decay only needs to
+ * look at its front. An entry may be out of date, the percept of its cell
+ * having been replaced or removed since; the memory checks this when the
+ * entry comes out.
+ *
+ * Stored in two growable ring buffers, no objects are allocated per entry.
+ */
+class TWPerceptDecayQueue {
+
+    private int[] cells = new int[64];
+    private int[] ticks = new int[64];
+    private int head;
+    private int size;
+
+    void add(int cell, int tick) {
+        if (size == cells.length) {
+            grow();
+        }
+        int i = (head + size) & (cells.length - 1);
+        cells[i] = cell;
+        ticks[i] = tick;
+        size++;
+    }
+
+    /**
+     * Adds an entry which may be older than the newest ones, behind the
+     * last entry not newer than it. Costs one step per newer entry passed,
+     * so it is meant for entries only a little out of order.
+     */
+    void addInOrder(int cell, int tick) {
+        add(cell, tick);
+        int mask = cells.length - 1;
+        int i = (head + size - 1) & mask;
+        for (int k = size - 1; k > 0; k--) {
+            int p = (i - 1) & mask;
+            if (ticks[p] <= tick) {
+                break;
+            }
+            cells[i] = cells[p];
+            ticks[i] = ticks[p];
+            cells[p] = cell;
+            ticks[p] = tick;
+            i = p;
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the tick of the oldest entry, the queue must not be empty
+     */
+    int peekTick() {
+        return ticks[head];
+    }
+
+    /**
+     * Removes the oldest entry.
+     *
+     * @return its cell
+     */
+    int poll() {
+        int cell = cells[head];
+        head = (head + 1) & (cells.length - 1);
+        size--;
+        return cell;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        int[] newCells = new int[cells.length * 2];
+        int[] newTicks = new int[ticks.length * 2];
+        for (int i = 0; i < size; i++) {
+            int j = (head + i) & (cells.length - 1);
+            newCells[i] = cells[j];
+            newTicks[i] = ticks[j];
+        }
+        cells = newCells;
+        ticks = newTicks;
+        head = 0;
+    }
+}
@@ -0,0 +1,137 @@
+package tileworld.environment;
+
+/**
+ * TWCellPlanes
+ *
+ * Description:
+ *
+ * A primitive copy of the object grid, stored as one array per field (cell
+ * type, entity id and death tick) rather than as TWEntity references. Scans
+ * over large worlds then walk contiguous arrays and never dereference or
+ * instanceof an entity.
+ *
+ * Cells are numbered row by row, cell = y * width + x, the same as
+ * TWEnvironment.cellIndex. The planes are written only by TWEnvironment,
+ * alongside the object grid.
+ */
+public class TWCellPlanes {
+
+    public static final byte EMPTY = 0;
+    public static final byte TILE = 1;
+    public static final byte HOLE = 2;
+    public static final byte OBSTACLE = 3;
+    public static final byte FUEL_STATION = 4;
+
+    /**
+     * Entity id of an empty cell, real ids start at 1.
+     */
+    public static final int NO_ENTITY = 0;
+    /**
+     * Death tick of cells which never expire (empty cells, fuel station).
+     */
+    public static final int NEVER = Integer.MAX_VALUE;
+
+    private final int width;
+    private final int height;
+    private final byte[] types;
+    private final int[] ids;
+    private final int[] deathTicks;
+
+    public TWCellPlanes(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.types = new byte[width * height];
+        this.ids = new int[width * height];
+        this.deathTicks = new int[width * height];
+        java.util.Arrays.fill(deathTicks, NEVER);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte cellType(int x, int y) {
+        return types[y * width + x];
+    }
+
+    public byte cellType(int cell) {
+        return types[cell];
+    }
+
+    public boolean isObstacle(int x, int y) {
+        return types[y * width + x] == OBSTACLE;
+    }
+
+    public boolean isEmpty(int x, int y) {
+        return types[y * width + x] == EMPTY;
+    }
+
+    /**
+     * @return the id of the entity at x, y or NO_ENTITY
+     */
+    public int entityId(int x, int y) {
+        return ids[y * width + x];
+    }
+
+    public int entityId(int cell) {
+        return ids[cell];
+    }
+
+    /**
+     * @return the tick at which the object at x, y dies, NEVER if empty or
+     * the object does not expire
+     */
+    public int deathTick(int x, int y) {
+        return deathTicks[y * width + x];
+    }
+
+    /**
+     * Records e as the content of cell, or clears it if e is null.
+     */
+    void set(int cell, TWEntity e) {
+        if (e == null) {
+            types[cell] = EMPTY;
+            ids[cell] = NO_ENTITY;
+            deathTicks[cell] = NEVER;
+        } else {
+            types[cell] = typeOf(e);
+            ids[cell] = e.getId();
+            deathTicks[cell] = (e instanceof TWObject) ? deathTick((TWObject) e) : NEVER;
+        }
+    }
+
+    /**
+     * Refreshes the death tick of an object after its death time is known
+     * or changed.
+     */
+    void updateDeathTick(int cell, TWObject o) {
+        if (ids[cell] == o.getId()) {
+            deathTicks[cell] = deathTick(o);
+        }
+    }
+
+    /**
+     * @return the cell type code matching the class of e
+     */
+    public static byte typeOf(Object e) {
+        if (e instanceof TWTile) {
+            return TILE;
+        } else if (e instanceof TWHole) {
+            return HOLE;
+        } else if (e instanceof TWObstacle) {
+            return OBSTACLE;
+        } else if (e instanceof TWFuelStation) {
+            return FUEL_STATION;
+        }
+        return EMPTY;
+    }
+
+    private static int deathTick(TWObject o) {
+        long tick = TWObjectExpiryWheel.deathTick(o.getDeathTime());
+        return (int) Math.min(tick, NEVER);
+    }
+}
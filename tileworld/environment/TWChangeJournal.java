@@ -0,0 +1,67 @@
+package tileworld.environment;
+
+/**
+ * TWChangeJournal
+ *
+ * Description:
+ *
+ * Records the cells of the object grid as they change, in order, so that a
+ * reader who remembers the sequence number it last read up to can visit
+ * just the cells changed since, instead of the whole area it is interested
+ * in. Used by the agents' sensors to sense incrementally.
+ *
+ * The journal is a ring of fixed capacity, a reader that falls more than
+ * the capacity behind has lost changes and must start over, see
+ * isAvailable.
+ */
+public class TWChangeJournal {
+
+    private final int[] cells;
+    private final int mask;
+    /** Number of changes recorded so far, the sequence of the next change */
+    private long sequence;
+
+    /**
+     * @param capacity number of changes kept, rounded up to a power of two
+     */
+    public TWChangeJournal(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.cells = new int[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Records a change of cell (y * width + x).
+     */
+    void record(int cell) {
+        cells[(int) (sequence & mask)] = cell;
+        sequence++;
+    }
+
+    /**
+     * @return the sequence number the next change will get, i.e., a reader
+     * which has read up to here has seen every change so far
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return cells.length;
+    }
+
+    /**
+     * @return true if every change from sequence number from onwards is
+     * still in the journal
+     */
+    public boolean isAvailable(long from) {
+        return from <= sequence && sequence - from <= cells.length;
+    }
+
+    /**
+     * @return the cell of change number seq, which must be available
+     */
+    public int getCell(long seq) {
+        return cells[(int) (seq & mask)];
+    }
+}
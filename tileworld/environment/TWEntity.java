@@ -29,6 +29,10 @@ public abstract class TWEntity{
 
     protected int x;
     protected int y;
+    /**
+     * Unique id given by the environment, 0 for entities made without one.
+     */
+    private int id;
 
     /**
      * SHould not be used, defined for creating instances for ObjectCreators
@@ -40,6 +44,7 @@ public abstract class TWEntity{
     public TWEntity(int xpos, int ypos, TWEnvironment env){
         
         environment = env;
+        id = env.nextEntityId();
         //Set location of entity when it's created
 //        x = xpos; y = ypos;
 //        environment.getGrid().set(xpos,ypos,this);
@@ -55,7 +60,7 @@ public abstract class TWEntity{
     protected void setLocation(int xpos, int ypos){
         x=xpos;y=ypos;
         //Set location of entity when it's created
-        environment.getObjectGrid().set(x, y, this);
+        environment.setObjectCell(x, y, this);
     }
 
     public void setLocation(Int2D pos){
@@ -105,6 +110,21 @@ public abstract class TWEntity{
         return getManhattanDistanceTo(x,y);
     }
 
+    /**
+     * @return the id of this entity, unique within its environment
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gives the entity a fresh id, used when a pooled object is reused so
+     * that it is not mistaken for its previous life.
+     */
+    void renumber() {
+        id = environment.nextEntityId();
+    }
+
     /**
      * @return the environment
      */
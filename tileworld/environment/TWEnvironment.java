@@ -4,6 +4,8 @@
 package tileworld.environment;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 import sim.engine.SimState;
@@ -11,11 +13,14 @@ import sim.engine.Steppable;
 import sim.field.grid.ObjectGrid2D;
 import sim.util.Bag;
 import sim.util.Int2D;
-import tileworld.Parameters;
+import tileworld.TWConfiguration;
 import tileworld.TWGUI;
 import tileworld.agent.Message;
-import tileworld.agent.SimpleTWAgent;
 import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentFactory;
+import tileworld.agent.TWAgentWorkingMemorySingleton;
+import tileworld.agent.TWMessageBus;
+import tileworld.agent.TWParallelStepper;
 
 /**
  * TWEnvironment
@@ -33,9 +38,13 @@ import tileworld.agent.TWAgent;
 public class TWEnvironment extends SimState implements Steppable {
 
 
-    //Parameters to configure the environment - read from main parameter file
-    private final int xDimension = Parameters.xDimension; //size in cells
-    private final int yDimension = Parameters.yDimension;
+    /**
+     * Parameters to configure the environment, Parameters unless another
+     * configuration is given.
+     */
+    private final TWConfiguration config;
+    private final int xDimension; //size in cells
+    private final int yDimension;
     
     /**
      * grid environment which stores all TWEntities, ObjectGrd is preferred over
@@ -44,20 +53,78 @@ public class TWEnvironment extends SimState implements Steppable {
      */
     private ObjectGrid2D objectGrid;
     private ObjectGrid2D agentGrid;
+    /**
+     * The agents of this run, in the order they were created.
+     */
+    private final ArrayList<TWAgent> agents = new ArrayList<TWAgent>();
+    private final List<TWAgent> agentsView = Collections.unmodifiableList(agents);
+    /**
+     * The cells of objectGrid holding no object, all writes to objectGrid go
+     * through setObjectCell to keep it in step.
+     */
+    private TWFreeCellIndex freeCells;
+    /**
+     * Primitive copy of objectGrid (type, id and death tick per cell), for
+     * scans which should not touch the entities themselves.
+     */
+    private TWCellPlanes cellPlanes;
+    /**
+     * One bit per cell set where objectGrid holds an obstacle.
+     */
+    private TWObstacleBitboard obstacleBits;
+    private int lastEntityId;
    
     private TWObjectCreator<TWTile> tileCreator;
     private TWObjectCreator<TWHole> holeCreator;
     private TWObjectCreator<TWObstacle> obstacleCreator;
     /**
-     * Assumed all objects have same lifeTime now.
+     * Objects which have left the grid, reused by the creators. An object is
+     * only reused once agent memory can no longer refer to it, memory decays
+     * after objects are created within a timestep hence the extra step.
+     */
+    private final TWObjectPool<TWTile> tilePool;
+    private final TWObjectPool<TWHole> holePool;
+    private final TWObjectPool<TWObstacle> obstaclePool;
+    /**
+     * All live tiles, holes and obstacles, bucketed by the tick at which they
+     * die. Assumed all objects have same lifeTime now, so the wheel is sized to
+     * that.
+     */
+    private TWObjectExpiryWheel expiryWheel;
+    /**
+     * Cells of the object grid in the order they changed, for incremental
+     * sensing.
      */
-    //containers for all objects in the environment
-    private Bag tiles;
-    private Bag holes;
-    private Bag obstacles;
+    private TWChangeJournal changeJournal;
+    private static final int CHANGE_JOURNAL_CAPACITY = 1 << 14;
+    private final TWObjectExpiryWheel.ExpiryHandler expiryHandler = new TWObjectExpiryWheel.ExpiryHandler() {
+        public void expired(TWObject o) {
+            clearObjectCell(o);
+            recycleTWObject(o);
+        }
+    };
     private TWFuelStation fuelingStation;
     
+    /**
+     * Memory shared by the agents of this environment, exists from start()
+     * to finish().
+     */
+    private TWAgentWorkingMemorySingleton sharedMemory;
+    /**
+     * Steps the agents when they are stepped in phases, null otherwise.
+     */
+    private TWParallelStepper parallelStepper;
+    /**
+     * Makes the agents in start().
+     */
+    private TWAgentFactory agentFactory = TWAgentFactory.SIMPLE;
+
     private ArrayList<Message> messages; // the communication channel
+    /**
+     * Indexed, double buffered messaging between the agents, recreated by
+     * start().
+     */
+    private TWMessageBus messageBus = new TWMessageBus();
     
     private int reward;
 
@@ -74,20 +141,29 @@ public class TWEnvironment extends SimState implements Steppable {
     }
 
     public TWEnvironment(long seed) {
+        this(seed, TWConfiguration.defaults());
+    }
+
+    public TWEnvironment(long seed, TWConfiguration config) {
         super(seed);
+        this.config = config;
+        this.xDimension = config.getxDimension();
+        this.yDimension = config.getyDimension();
+
+        int quarantine = Math.max(config.getLifeTime(), TWAgentWorkingMemorySingleton.MAX_TIME + 2);
+        this.tilePool = new TWObjectPool<TWTile>(quarantine);
+        this.holePool = new TWObjectPool<TWHole>(quarantine);
+        this.obstaclePool = new TWObjectPool<TWObstacle>(quarantine);
 
         // create object creation distributions (assumed normal for now)
 
-        this.tileCreator = new TWObjectCreator<TWTile>(Parameters.tileMean, Parameters.tileDev,
-                tiles, this.random, new TWTile(), this);
-        this.holeCreator = new TWObjectCreator<TWHole>(Parameters.holeMean, Parameters.holeDev,
-                holes, this.random, new TWHole(), this);
-        this.obstacleCreator = new TWObjectCreator<TWObstacle>(Parameters.obstacleMean,
-                Parameters.obstacleDev, obstacles, this.random, new TWObstacle(), this);
+        this.tileCreator = new TWObjectCreator<TWTile>(config.getTileMean(), config.getTileDev(),
+                this.random, TWTile::new, tilePool, this);
+        this.holeCreator = new TWObjectCreator<TWHole>(config.getHoleMean(), config.getHoleDev(),
+                this.random, TWHole::new, holePool, this);
+        this.obstacleCreator = new TWObjectCreator<TWObstacle>(config.getObstacleMean(),
+                config.getObstacleDev(), this.random, TWObstacle::new, obstaclePool, this);
 
-        tiles = new Bag();
-        holes = new Bag();
-        obstacles = new Bag();
         reward = 0;
         messages = new ArrayList<Message>();
     }
@@ -98,72 +174,182 @@ public class TWEnvironment extends SimState implements Steppable {
         //create my grid
         this.objectGrid = new ObjectGrid2D(getxDimension(), getyDimension());
         this.agentGrid = new ObjectGrid2D(getxDimension(), getyDimension());
+        this.freeCells = new TWFreeCellIndex(getxDimension(), getyDimension());
+        this.cellPlanes = new TWCellPlanes(getxDimension(), getyDimension());
+        this.obstacleBits = new TWObstacleBitboard(getxDimension(), getyDimension());
+        this.lastEntityId = 0;
+        this.expiryWheel = new TWObjectExpiryWheel(config.getLifeTime());
+        this.changeJournal = new TWChangeJournal(CHANGE_JOURNAL_CAPACITY);
+        tilePool.clear();
+        holePool.clear();
+        obstaclePool.clear();
+        agents.clear();
         if(TWGUI.instance!=null){
             TWGUI.instance.resetDisplay();
         }
 
+        //fresh team memory and message bus for this run, before any agent
+        //is created
+        this.sharedMemory = new TWAgentWorkingMemorySingleton(this);
+        this.messageBus = new TWMessageBus();
+
         //The environment is also stepped each step
 
         schedule.scheduleRepeating(this, 1, 1.0);
         
         //Now we create some agents
-        Int2D pos = this.generateRandomLocation();
-        createAgent(new SimpleTWAgent("agent1", pos.getX(), pos.getY(), this, Parameters.defaultFuelLevel));
-        pos = this.generateRandomLocation();
-        createAgent(new SimpleTWAgent("agent2", pos.getX(), pos.getY(), this, Parameters.defaultFuelLevel));
+        Int2D pos;
+        for (int i = 1; i <= config.getAgentCount(); i++) {
+            pos = this.generateRandomLocation();
+            createAgent(agentFactory.create(i, pos.getX(), pos.getY(), this, config.getDefaultFuelLevel()));
+        }
         
 //        
         //create the fueling station
         pos = this.generateRandomLocation();
         fuelingStation = new TWFuelStation(pos.getX(), pos.getY(),this);
 
+        //in phased mode one steppable steps all agents, see createAgent
+        if (config.getAgentThreads() > 0) {
+            parallelStepper = new TWParallelStepper(this, agentsView, config.getAgentThreads());
+            schedule.scheduleRepeating(parallelStepper, 2, 1.0);
+        }
+
 
 
     }
 
+    @Override
+    public void finish() {
+        super.finish();
+        if (parallelStepper != null) {
+            parallelStepper.shutdown();
+            parallelStepper = null;
+        }
+        if (sharedMemory != null) {
+            sharedMemory.dispose();
+            sharedMemory = null;
+        }
+    }
+
+    /**
+     * @return the memory shared by the agents of this environment, null
+     * outside start() ... finish()
+     */
+    public TWAgentWorkingMemorySingleton getSharedMemory() {
+        return sharedMemory;
+    }
+
     private void createTWObjects(double time) {
-        try {
-            tiles.addAll(tileCreator.createTWObjects(time));
-            holes.addAll(holeCreator.createTWObjects(time));
-            obstacles.addAll(obstacleCreator.createTWObjects(time));
-        } catch (IllegalAccessException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (InstantiationException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        scheduleTWObjects(tileCreator.createTWObjects(time));
+        scheduleTWObjects(holeCreator.createTWObjects(time));
+        scheduleTWObjects(obstacleCreator.createTWObjects(time));
+    }
+
+    private void scheduleTWObjects(Bag created) {
+        for (int i = 0; i < created.size(); i++) {
+            scheduleExpiry((TWObject) created.get(i));
         }
     }
 
     /**
-     * Horribly inefficient, Context is not ordered so need complete iteration of context to remove items.
-     * This is done every timestep
+     * Puts a new object in the timing wheel, at which point its death time is
+     * known and can be copied into the cell planes.
+     */
+    private void scheduleExpiry(TWObject o) {
+        expiryWheel.schedule(o);
+        cellPlanes.updateDeathTick(cellIndex(o.getX(), o.getY()), o);
+    }
+
+    /**
+     * Removes the objects whose lifetime is over. Only the bucket of the
+     * timing wheel for this timestep is visited, so the cost is proportional
+     * to the number of objects actually expiring rather than all objects.
      */
     private void removeTWObjects(double timeNow) {
+        expiryWheel.expire(timeNow, expiryHandler);
+    }
 
-        for (int i = 0; i < tiles.size(); i++) {
-            if (((TWObject) tiles.get(i)).getTimeLeft(timeNow) <= 0) {
-                this.objectGrid.set(((TWObject) tiles.get(i)).getX(), ((TWObject) tiles.get(i)).getY(), null);
-                tiles.remove(i);
+    /**
+     * Removes the object at x, y from the environment before the end of its
+     * lifetime, e.g., a tile that has been picked up or a hole that has been
+     * filled.
+     *
+     * @param x
+     * @param y
+     * @return the object removed, or null if the cell held no TWObject
+     */
+    public TWObject removeTWObject(int x, int y) {
+        Object o = objectGrid.get(x, y);
+        if (o instanceof TWObject) {
+            expiryWheel.cancel((TWObject) o);
+            clearObjectCell((TWObject) o);
+            return (TWObject) o;
+        }
+        setObjectCell(x, y, null);
+        return null;
+    }
 
-            }
+    /**
+     * Hands an object which has left the environment for good back to the
+     * pool of its type, so that its instance can be reused for a later
+     * object. Only call this once nothing but agent memory refers to it.
+     *
+     * @param o a tile, hole or obstacle no longer on the grid
+     */
+    public void recycleTWObject(TWObject o) {
+        double time = schedule.getTime();
+        if (o instanceof TWTile) {
+            tilePool.release((TWTile) o, time);
+        } else if (o instanceof TWHole) {
+            holePool.release((TWHole) o, time);
+        } else if (o instanceof TWObstacle) {
+            obstaclePool.release((TWObstacle) o, time);
         }
+    }
 
-        for (int i = 0; i < holes.size(); i++) {
-            if (((TWObject) holes.get(i)).getTimeLeft(timeNow) <= 0) {
-                this.objectGrid.set(((TWObject) holes.get(i)).getX(), ((TWObject) holes.get(i)).getY(), null);
-                holes.remove(i);
-            }
+    /**
+     * Moves an object to the bucket matching its (changed) death time.
+     */
+    void rescheduleTWObject(TWObject o) {
+        expiryWheel.cancel(o);
+        scheduleExpiry(o);
+    }
+
+    /**
+     * Clears the cell of o, unless something else has been put there since.
+     */
+    private void clearObjectCell(TWObject o) {
+        if (objectGrid.get(o.getX(), o.getY()) == o) {
+            setObjectCell(o.getX(), o.getY(), null);
         }
+    }
 
-        for (int i = 0; i < obstacles.size(); i++) {
-            if (((TWObject) obstacles.get(i)).getTimeLeft(timeNow) <= 0) {
-                this.objectGrid.set(((TWObject) obstacles.get(i)).getX(), ((TWObject) obstacles.get(i)).getY(), null);
-                obstacles.remove(i);
-            }
+    /**
+     * Puts e (or nothing if e is null) in the object grid at x, y. This is
+     * the only place the object grid is written, so the index of free cells
+     * always matches it.
+     */
+    void setObjectCell(int x, int y, TWEntity e) {
+        int cell = cellIndex(x, y);
+        objectGrid.set(x, y, e);
+        cellPlanes.set(cell, e);
+        obstacleBits.set(x, y, e instanceof TWObstacle);
+        changeJournal.record(cell);
+        if (e == null) {
+            freeCells.release(cell);
+        } else {
+            freeCells.occupy(cell);
         }
     }
 
+    /**
+     * @return a new id for an entity created in this environment
+     */
+    int nextEntityId() {
+        return ++lastEntityId;
+    }
+
     public void step(SimState state) {
     	double time = state.schedule.getTime();
         // create new objects
@@ -171,10 +357,17 @@ public class TWEnvironment extends SimState implements Steppable {
         // remove old objects (dead ones)
         removeTWObjects(time);
         messages.clear(); // clear the messages in every time step
+        messageBus.advance(); // last step's messages become readable
         
         
     }
     
+    /**
+     * @return the messages sent this step through receiveMessage, which
+     * every agent has to search for its own; the message bus delivers by
+     * recipient instead
+     * @see TWEnvironment#getMessageBus()
+     */
     public ArrayList<Message> getMessages(){
     	return messages;
     }
@@ -182,6 +375,13 @@ public class TWEnvironment extends SimState implements Steppable {
     public void receiveMessage(Message m){
     	messages.add(m);
     }
+
+    /**
+     * @return the message bus of the agents of this run
+     */
+    public TWMessageBus getMessageBus() {
+        return messageBus;
+    }
     
     /**
      * @return the grid
@@ -193,10 +393,60 @@ public class TWEnvironment extends SimState implements Steppable {
     public ObjectGrid2D getAgentGrid() {
         return agentGrid;
     }
+
+    /**
+     * @return the primitive (type, id, death tick) view of the object grid
+     */
+    public TWCellPlanes getCellPlanes() {
+        return cellPlanes;
+    }
+
+    /**
+     * @return the TWCellPlanes type code of the object at x, y
+     */
+    public byte cellType(int x, int y) {
+        return cellPlanes.cellType(x, y);
+    }
+
+    /**
+     * @return the journal of object grid changes
+     */
+    public TWChangeJournal getChangeJournal() {
+        return changeJournal;
+    }
+
+    /**
+     * @return the obstacles of the environment, one bit per cell
+     */
+    public TWObstacleBitboard getObstacleBitboard() {
+        return obstacleBits;
+    }
+
+    /**
+     * @return true if x, y is in bounds and holds an obstacle
+     */
+    public boolean isObstacle(int x, int y) {
+        return isInBounds(x, y) && obstacleBits.get(x, y);
+    }
+
+    /**
+     * @return true if there is an obstacle within range (in both x and y) of
+     * x, y, e.g., in the sensor window of an agent there
+     */
+    public boolean anyObstacleWithin(int x, int y, int range) {
+        return obstacleBits.anyWithin(x, y, range);
+    }
     
 
 
  
+    /**
+     * @return the configuration this environment was created with
+     */
+    public TWConfiguration getConfiguration() {
+        return config;
+    }
+
     /**
      * @return the xDimension
      */
@@ -212,7 +462,7 @@ public class TWEnvironment extends SimState implements Steppable {
     }
 
     public boolean isCellOccupied(int x, int y){
-            return (objectGrid.get(x, y) != null);
+            return !cellPlanes.isEmpty(x, y);
     }
 
     /**
@@ -223,21 +473,21 @@ public class TWEnvironment extends SimState implements Steppable {
      */
     public boolean isCellBlocked(int x, int y) {
         if(this.isValidLocation(x, y)){
-        TWEntity e = (TWEntity) objectGrid.get(x, y);
-        return (e != null && (e instanceof TWObstacle));
+            return obstacleBits.get(x, y);
         }else{
             return true;
         }
 
     }
     
+    /**
+     * A remembered tile may be one that has gone, its instance pooled and
+     * perhaps reused, so the very instance must be in the cell.
+     */
     public boolean canPickupTile(TWTile tile, TWAgent agent) {
     	if(!agent.sameLocation(tile))
     		return false;
-    	TWEntity e = (TWEntity) objectGrid.get(tile.x, tile.y);
-    	if(e == null||!(e instanceof TWTile))
-    		return false;
-    	return true;
+    	return objectGrid.get(tile.x, tile.y) == tile;
     }
     
     public boolean canPutdownTile(TWHole hole, TWAgent agent) {
@@ -245,14 +495,11 @@ public class TWEnvironment extends SimState implements Steppable {
     		return false;
     	if(!agent.sameLocation(hole))
     		return false;
-    	TWEntity e = (TWEntity) objectGrid.get(hole.x, hole.y);
-    	if(e == null||!(e instanceof TWHole))
-    		return false;
-    	return true;
+    	return objectGrid.get(hole.x, hole.y) == hole;
     }
     
     public boolean doesCellContainObject(int x, int y) {
-        return !(objectGrid.get(x, y) == null);
+        return !cellPlanes.isEmpty(x, y);
     }
 
     /**
@@ -278,17 +525,28 @@ public class TWEnvironment extends SimState implements Steppable {
     }
 
     /**
-     * picks a random location from the environment, used for free walk algorithm.
-     * Bit stupid now, will be very slow when the environment fills up.
+     * picks a random free location from the environment, used for free walk
+     * algorithm and to place new objects. Free cells are indexed, so this
+     * takes constant time however full the environment is.
+     *
+     * @return a location containing no object, or null if there is none
      */
     public Int2D generateRandomLocation() {
-        int gx = 1, gy = 1;
-        while (!isValidCreationLocation(
-                gx = this.random.nextInt(this.xDimension),
-                gy = this.random.nextInt(this.yDimension))) {
+        int cell = randomFreeCell();
+        if (cell < 0) {
+            return null;
         }
+        return new Int2D(cellX(cell), cellY(cell));
+    }
 
-        return new Int2D(gx, gy);
+    /**
+     * As generateRandomLocation, but returns the cell index so that no Int2D
+     * is created.
+     *
+     * @return index of a cell containing no object, or -1 if there is none
+     */
+    public int randomFreeCell() {
+        return freeCells.randomFreeCell(this.random);
     }
 
     /**
@@ -297,14 +555,29 @@ public class TWEnvironment extends SimState implements Steppable {
      * @param x
      * @param y
      * @param minDistance
+     * @return the location, or null if no free cell is that far away
      */
     public Int2D generateFarRandomLocation(int x, int y, int minDistance) {
-        int gx = 1, gy = 1;
-        while (!isValidCreationLocation(gx = this.random.nextInt(this.xDimension),
-                gy = this.random.nextInt(this.yDimension)) && this.getDistance(x, y, gx, gy) < minDistance) {
+        int cell = freeCells.randomFarFreeCell(this.random, x, y, minDistance);
+        if (cell < 0) {
+            return null;
         }
+        return new Int2D(cellX(cell), cellY(cell));
+    }
 
-        return new Int2D(gx, gy);
+    /**
+     * Index of cell x, y when the grid is numbered row by row.
+     */
+    public int cellIndex(int x, int y) {
+        return y * this.xDimension + x;
+    }
+
+    public int cellX(int cell) {
+        return cell % this.xDimension;
+    }
+
+    public int cellY(int cell) {
+        return cell / this.xDimension;
     }
 
     /**
@@ -355,22 +628,50 @@ public class TWEnvironment extends SimState implements Steppable {
      * 
      * Remember smaller ordering means it is executed earlier.
      * 
+     * When the configuration asks for agentThreads, the agents are not
+     * scheduled one by one but stepped together by a TWParallelStepper,
+     * created by start() once all agents exist.
      * 
      * @param a 
      */
     private void createAgent(TWAgent a) {
-    	schedule.scheduleRepeating(new Steppable(){
-            public void step(SimState state) {
-                a.sense();
-                a.communicate();
-            }
-        }, 2, 1.0);
-        schedule.scheduleRepeating(a, 3, 1.0);
+        agents.add(a);
+        messageBus.register(a);
+        if (config.getAgentThreads() == 0) {
+            schedule.scheduleRepeating(new Steppable(){
+                public void step(SimState state) {
+                    a.sense();
+                    a.communicate();
+                }
+            }, 2, 1.0);
+            schedule.scheduleRepeating(a, 3, 1.0);
+        }
         if(TWGUI.instance !=null){
             TWGUI.instance.addMemoryPortrayal(a);
         }
     }
 
+    public TWAgentFactory getAgentFactory() {
+        return agentFactory;
+    }
+
+    /**
+     * Sets the factory making the agents, used from the next start() on.
+     */
+    public void setAgentFactory(TWAgentFactory agentFactory) {
+        if (agentFactory == null) {
+            throw new IllegalArgumentException("agentFactory must not be null");
+        }
+        this.agentFactory = agentFactory;
+    }
+
+    /**
+     * @return the agents of this run, in the order they were created
+     */
+    public List<TWAgent> getAgents() {
+        return agentsView;
+    }
+
     public int getReward(){
     	return reward;
     }
@@ -0,0 +1,141 @@
+package tileworld.environment;
+
+import ec.util.MersenneTwisterFast;
+
+/**
+ * TWFreeCellIndex
+ *
+ * Description:
+ *
+ * Keeps track of the cells of the object grid which contain no object, so a
+ * random free location can be drawn in constant time however full the
+ * environment is. The free cells are kept at the front of a dense array of
+ * cell indices, position maps a cell back to its slot so that occupying or
+ * releasing a cell is a single swap.
+ *
+ * Cells are numbered row by row, cell = y * width + x.
+ */
+public class TWFreeCellIndex {
+
+    /**
+     * Number of rejection samples tried by randomFarFreeCell before it falls
+     * back to an exact pass over the free cells.
+     */
+    private static final int FAR_SAMPLE_ATTEMPTS = 64;
+
+    private final int width;
+    private final int[] cells;
+    private final int[] position;
+    private int free;
+
+    /**
+     * Creates an index where every cell is free.
+     */
+    public TWFreeCellIndex(int width, int height) {
+        this.width = width;
+        this.cells = new int[width * height];
+        this.position = new int[width * height];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+            position[i] = i;
+        }
+        this.free = cells.length;
+    }
+
+    public boolean isFree(int cell) {
+        return position[cell] < free;
+    }
+
+    /**
+     * Marks a cell as containing an object, does nothing if it already is.
+     */
+    public void occupy(int cell) {
+        int p = position[cell];
+        if (p < free) {
+            swap(p, --free);
+        }
+    }
+
+    /**
+     * Marks a cell as empty again, does nothing if it already is.
+     */
+    public void release(int cell) {
+        int p = position[cell];
+        if (p >= free) {
+            swap(p, free++);
+        }
+    }
+
+    /**
+     * @return the number of free cells
+     */
+    public int freeCount() {
+        return free;
+    }
+
+    /**
+     * Draws a free cell uniformly at random.
+     *
+     * @param random generator to draw from, the simulation's one keeps runs
+     * reproducible from the seed
+     * @return the cell index, or -1 if there is no free cell
+     */
+    public int randomFreeCell(MersenneTwisterFast random) {
+        if (free == 0) {
+            return -1;
+        }
+        return cells[random.nextInt(free)];
+    }
+
+    /**
+     * Draws a free cell uniformly at random among those at a manhattan
+     * distance of at least minDistance from x, y.
+     *
+     * Free cells are sampled directly, so only the share of far cells among
+     * free cells matters, not how full the grid is. If a handful of samples
+     * all land too close (minDistance close to the grid size) one exact pass
+     * over the free cells is made instead.
+     *
+     * @return the cell index, or -1 if there is no such cell
+     */
+    public int randomFarFreeCell(MersenneTwisterFast random, int x, int y, int minDistance) {
+        if (free == 0) {
+            return -1;
+        }
+        for (int i = 0; i < FAR_SAMPLE_ATTEMPTS; i++) {
+            int cell = cells[random.nextInt(free)];
+            if (distance(cell, x, y) >= minDistance) {
+                return cell;
+            }
+        }
+        int candidates = 0;
+        for (int i = 0; i < free; i++) {
+            if (distance(cells[i], x, y) >= minDistance) {
+                candidates++;
+            }
+        }
+        if (candidates == 0) {
+            return -1;
+        }
+        int pick = random.nextInt(candidates);
+        for (int i = 0; i < free; i++) {
+            if (distance(cells[i], x, y) >= minDistance && pick-- == 0) {
+                return cells[i];
+            }
+        }
+        return -1;
+    }
+
+    private int distance(int cell, int x, int y) {
+        return Math.abs(cell % width - x) + Math.abs(cell / width - y);
+    }
+
+    private void swap(int i, int j) {
+        int a = cells[i];
+        int b = cells[j];
+        cells[i] = b;
+        cells[j] = a;
+        position[b] = i;
+        position[a] = j;
+    }
+}
@@ -4,7 +4,6 @@
 package tileworld.environment;
 
 import sim.util.Int2D;
-import tileworld.Parameters;
 
 /**
  * TWObject
@@ -20,11 +19,25 @@ import tileworld.Parameters;
  */
 public class TWObject extends TWEntity{
 
-	protected static final int lifeTime = Parameters.lifeTime;
-
 	private double creationTime;
 	private double dTime;
 
+	static final long NOT_SCHEDULED = Long.MIN_VALUE;
+
+	/**
+	 * Links and key used by the TWObjectExpiryWheel of the environment, the
+	 * object is its own list node so scheduling allocates nothing.
+	 */
+	TWObject expiryPrev;
+	TWObject expiryNext;
+	long expiryTick = NOT_SCHEDULED;
+
+	/**
+	 * True while the object waits in a TWObjectPool, so it can't be
+	 * released twice.
+	 */
+	boolean pooled;
+
 
 	/**
 	 * @return the deathTime
@@ -38,6 +51,16 @@ public class TWObject extends TWEntity{
 	 */
 	public void setDeathTime(double d) {
 		this.dTime = d;
+		if (isScheduled()) {
+			getEnvironment().rescheduleTWObject(this);
+		}
+	}
+
+	/**
+	 * @return true if the object is waiting to expire in the environment
+	 */
+	boolean isScheduled() {
+		return expiryTick != NOT_SCHEDULED;
 	}
 
 	/**
@@ -54,6 +77,17 @@ public class TWObject extends TWEntity{
 		this(pos.x,pos.y,env,creationTime,deathTime);
 	}
 
+	/**
+	 * Reuses a pooled object for a new lifetime at x, y.
+	 */
+	void respawn(int x, int y, double creationTime, double deathTime) {
+		assert (!isScheduled());
+		this.creationTime = creationTime;
+		this.dTime = deathTime;
+		renumber();
+		setLocation(x, y);
+	}
+
 	public double getTimeLeft(double timeNow){
 		return dTime - timeNow;
 	}
@@ -1,48 +1,54 @@
 /**
- * 
+ *
  */
 package tileworld.environment;
 
 import ec.util.MersenneTwisterFast;
-import java.lang.reflect.InvocationTargetException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import sim.util.Bag;
-import sim.util.Int2D;
-import tileworld.Parameters;
 
 /**
  * TWObjectCreator
- * 
+ *
  * @author michaellees Created: Apr 16, 2010
- * 
+ *
  * Copyright michaellees 2010
- * 
+ *
  * Description:
  *
  * A class to create all types of TWObjects, the generic type T is the type of
  * TWObject.
+ *
+ * New objects come from the pool when one is available, otherwise from the
+ * factory (a constructor reference), so no reflection is involved.
  */
-public class TWObjectCreator<T> {
+public class TWObjectCreator<T extends TWObject> {
 
     double mean;
     double dev;
     MersenneTwisterFast random;
     TWEnvironment env;
-    private T instance;
-    Class[] classes = {Int2D.class, TWEnvironment.class, Double.class, Double.class};
+    private final TWObjectFactory<T> factory;
+    private final TWObjectPool<T> pool;
+    /**
+     * Returned by createTWObjects, reused on every call.
+     */
+    private final Bag items = new Bag();
 
     /**
-     * @param mean
-     * @param dev
-     * @param tileCreationDistribution
+     * @param mean mean number of objects created per timestep
+     * @param dev standard deviation of the number of objects per timestep
+     * @param random random number generator of the simulation
+     * @param factory creates new objects, e.g., TWTile::new
+     * @param pool objects to reuse before creating new ones, may be null
+     * @param env the environment objects are created in
      */
-    public TWObjectCreator(double mean, double dev,
-            Bag context, MersenneTwisterFast random, T inst, TWEnvironment env) {
+    public TWObjectCreator(double mean, double dev, MersenneTwisterFast random,
+            TWObjectFactory<T> factory, TWObjectPool<T> pool, TWEnvironment env) {
         super();
         this.mean = mean;
         this.dev = dev;
-        instance = inst;
+        this.factory = factory;
+        this.pool = pool;
 
         this.env = env;
         // create object creation distributions (assumed normal for now)
@@ -50,40 +56,32 @@ public class TWObjectCreator<T> {
 
     }
 
-    public Bag createTWObjects(double time) throws IllegalAccessException, InstantiationException {
+    /**
+     * Creates this timestep's objects and places them in the environment.
+     *
+     * @param time timestamp of creation
+     * @return the objects created, the bag is reused by the next call
+     */
+    public Bag createTWObjects(double time) {
 
         //translate the random variable between [0,1] to specified mean and std deviation
         double numberObjects = mean + dev * this.random.nextGaussian();
 
-        Bag items = new Bag();
+        items.clear();
         for (int i = 0; i < Math.floor(numberObjects); i++) {
-            T o = null;
-            try {
-                o = create((Class<T>) instance.getClass(), time);
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-                throw e;
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-                throw e;
+            T o = create(time);
+            if (o != null) {
+                items.add(o);
             }
-            items.add((TWObject) o);
         }
 
         if (numberObjects - Math.floor(numberObjects) > this.random.nextDouble()) {
-            try {
-                items.add((TWObject) create((Class<T>) instance.getClass(), time));
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-                throw e;
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-                throw e;
+            T o = create(time);
+            if (o != null) {
+                items.add(o);
             }
         }
 
-
-
         return items;
     }
 
@@ -91,31 +89,24 @@ public class TWObjectCreator<T> {
      * Creates an instance of the appropriate type (according to T) and then
      * sets the relevant parameters such as deathtime and location
      *
-     * @param clazz class of type to create
      * @param time timestamp of creation
-     * @return the created object
-     *
-     * @throws InstantiationException
-     * @throws IllegalAccessException
+     * @return the created object, or null if the environment is full
      */
-    private T create(Class<T> clazz, double time) throws InstantiationException, IllegalAccessException {
-
-        Int2D pos = env.generateRandomLocation();
+    private T create(double time) {
 
-        T o = null;
-        try {
-            o = clazz.getDeclaredConstructor(classes).newInstance(pos, env, time, (time + Parameters.lifeTime));
-        } catch (IllegalArgumentException ex) {
-            Logger.getLogger(TWObjectCreator.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (InvocationTargetException ex) {
-            Logger.getLogger(TWObjectCreator.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (NoSuchMethodException ex) {
-            Logger.getLogger(TWObjectCreator.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (SecurityException ex) {
-            Logger.getLogger(TWObjectCreator.class.getName()).log(Level.SEVERE, null, ex);
+        int cell = env.randomFreeCell();
+        if (cell < 0) {
+            return null;
+        }
+        int x = env.cellX(cell);
+        int y = env.cellY(cell);
+
+        T o = (pool == null) ? null : pool.acquire(time);
+        if (o == null) {
+            o = factory.create(x, y, env, time, time + env.getConfiguration().getLifeTime());
+        } else {
+            o.respawn(x, y, time, time + env.getConfiguration().getLifeTime());
         }
-
-        assert (o instanceof TWObject);
         return o;
     }
 }
@@ -0,0 +1,160 @@
+package tileworld.environment;
+
+/**
+ * TWObjectExpiryWheel
+ *
+ * Description:
+ *
+ * A bucketed timing wheel holding every live TWObject in the environment,
+ * keyed by the tick at which it dies. Each bucket is an intrusive doubly
+ * linked list threaded through the TWObjects themselves, so scheduling and
+ * cancelling an object are O(1) and expiring a tick only touches the objects
+ * which actually die then.
+ *
+ * An object dies at the first tick t with t >= deathTime, which matches the
+ * old getTimeLeft(t) <= 0 test. Objects further in the future than the wheel
+ * is wide simply stay in their bucket until their own tick comes round, so the
+ * wheel is correct for any lifetime, it is just fastest when it is at least
+ * as wide as the object lifetime.
+ */
+public class TWObjectExpiryWheel {
+
+    /**
+     * Called for each object removed from the wheel when it expires.
+     */
+    public interface ExpiryHandler {
+
+        void expired(TWObject o);
+    }
+
+    private final TWObject[] buckets;
+    private final int mask;
+    /**
+     * The last tick which has been expired, objects due at or before this
+     * tick are expired immediately on the next call to expire.
+     */
+    private long currentTick = Long.MIN_VALUE;
+    private int size;
+
+    /**
+     * @param horizon the number of ticks ahead objects are usually scheduled,
+     * normally the object lifetime. The wheel is rounded up to a power of two.
+     */
+    public TWObjectExpiryWheel(int horizon) {
+        int n = 1;
+        while (n <= horizon) {
+            n <<= 1;
+        }
+        this.buckets = new TWObject[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Adds an object to the wheel according to its death time.
+     */
+    public void schedule(TWObject o) {
+        assert (!o.isScheduled());
+        long tick = deathTick(o.getDeathTime());
+        if (currentTick != Long.MIN_VALUE && tick <= currentTick) {
+            // already due, put it in the next bucket to be visited
+            tick = currentTick + 1;
+        }
+        int b = (int) (tick & mask);
+        o.expiryTick = tick;
+        o.expiryPrev = null;
+        o.expiryNext = buckets[b];
+        if (buckets[b] != null) {
+            buckets[b].expiryPrev = o;
+        }
+        buckets[b] = o;
+        size++;
+    }
+
+    /**
+     * Removes an object from the wheel, e.g., a tile that has been picked up.
+     * Does nothing if the object is not scheduled.
+     */
+    public void cancel(TWObject o) {
+        if (!o.isScheduled()) {
+            return;
+        }
+        int b = (int) (o.expiryTick & mask);
+        if (o.expiryPrev == null) {
+            buckets[b] = o.expiryNext;
+        } else {
+            o.expiryPrev.expiryNext = o.expiryNext;
+        }
+        if (o.expiryNext != null) {
+            o.expiryNext.expiryPrev = o.expiryPrev;
+        }
+        o.expiryNext = null;
+        o.expiryPrev = null;
+        o.expiryTick = TWObject.NOT_SCHEDULED;
+        size--;
+    }
+
+    /**
+     * Expires every object whose death time is at or before timeNow. Each
+     * expired object is unlinked from the wheel before being passed to the
+     * handler, so the handler may reschedule it.
+     *
+     * @param timeNow current simulation time
+     * @param handler called once for each expired object
+     */
+    public void expire(double timeNow, ExpiryHandler handler) {
+        long now = (long) Math.floor(timeNow);
+        if (currentTick == Long.MIN_VALUE) {
+            currentTick = now - 1;
+        }
+        // only one lap of the wheel is needed however far time has jumped
+        long first = Math.max(currentTick + 1, now - mask);
+        for (long t = first; t <= now; t++) {
+            currentTick = t;
+            int b = (int) (t & mask);
+            TWObject o = buckets[b];
+            while (o != null) {
+                TWObject next = o.expiryNext;
+                if (o.expiryTick <= now) {
+                    cancel(o);
+                    handler.expired(o);
+                }
+                o = next;
+            }
+        }
+        currentTick = Math.max(currentTick, now);
+    }
+
+    /**
+     * @return number of objects currently in the wheel
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops every object from the wheel.
+     */
+    public void clear() {
+        for (int b = 0; b < buckets.length; b++) {
+            TWObject o = buckets[b];
+            while (o != null) {
+                TWObject next = o.expiryNext;
+                o.expiryNext = null;
+                o.expiryPrev = null;
+                o.expiryTick = TWObject.NOT_SCHEDULED;
+                o = next;
+            }
+            buckets[b] = null;
+        }
+        size = 0;
+        currentTick = Long.MIN_VALUE;
+    }
+
+    /**
+     * The first whole tick at which an object with the given death time is
+     * dead.
+     */
+    static long deathTick(double deathTime) {
+        return (long) Math.ceil(deathTime);
+    }
+}
@@ -0,0 +1,17 @@
+package tileworld.environment;
+
+/**
+ * TWObjectFactory
+ *
+ * Description:
+ *
+ * Creates a new TWObject of a given type, used by TWObjectCreator in place of
+ * reflection. All TWObjects have a matching constructor so a constructor
+ * reference can be used, e.g., TWTile::new.
+ *
+ * @param <T> the type of TWObject created
+ */
+public interface TWObjectFactory<T extends TWObject> {
+
+    T create(int x, int y, TWEnvironment env, double creationTime, double deathTime);
+}
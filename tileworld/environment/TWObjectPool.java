@@ -0,0 +1,100 @@
+package tileworld.environment;
+
+/**
+ * TWObjectPool
+ *
+ * Description:
+ *
+ * Keeps TWObjects which have left the grid so that TWObjectCreator can reuse
+ * them instead of creating new ones.
+ *
+ * Agents may still hold references to an object for a while after it has
+ * gone (their memory does until it decays), so a released object is only
+ * handed out again once it has been off the grid for quarantine timesteps.
+ * Objects are released in time order, so this is a simple FIFO.
+ *
+ * @param <T> the type of TWObject pooled
+ */
+public class TWObjectPool<T extends TWObject> {
+
+    private final int quarantine;
+    private Object[] objects = new Object[16];
+    private long[] releaseTimes = new long[16];
+    private int head;
+    private int size;
+
+    /**
+     * @param quarantine number of timesteps an object must be off the grid
+     * before it is reused
+     */
+    public TWObjectPool(int quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Hands back an object which has left the grid at time.
+     *
+     * @return false, and nothing done, if o is already in the pool
+     */
+    public boolean release(T o, double time) {
+        if (o.pooled) {
+            return false;
+        }
+        o.pooled = true;
+        if (size == objects.length) {
+            grow();
+        }
+        int tail = (head + size) & (objects.length - 1);
+        objects[tail] = o;
+        releaseTimes[tail] = (long) Math.floor(time);
+        size++;
+        return true;
+    }
+
+    /**
+     * @return an object which has been out of quarantine, or null if there is
+     * none yet and a new one should be created
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire(double time) {
+        if (size == 0 || releaseTimes[head] + quarantine > time) {
+            return null;
+        }
+        T o = (T) objects[head];
+        o.pooled = false;
+        objects[head] = null;
+        head = (head + 1) & (objects.length - 1);
+        size--;
+        return o;
+    }
+
+    /**
+     * @return number of objects waiting in the pool
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        while (size > 0) {
+            ((TWObject) objects[head]).pooled = false;
+            objects[head] = null;
+            head = (head + 1) & (objects.length - 1);
+            size--;
+        }
+        head = 0;
+    }
+
+    private void grow() {
+        Object[] o = new Object[objects.length * 2];
+        long[] t = new long[objects.length * 2];
+        for (int i = 0; i < size; i++) {
+            int j = (head + i) & (objects.length - 1);
+            o[i] = objects[j];
+            t[i] = releaseTimes[j];
+        }
+        objects = o;
+        releaseTimes = t;
+        head = 0;
+    }
+}
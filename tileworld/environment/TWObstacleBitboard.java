@@ -0,0 +1,258 @@
+package tileworld.environment;
+
+/**
+ * TWObstacleBitboard
+ *
+ * Description:
+ *
+ * One bit per cell marking obstacles, each row of the grid is stored in its
+ * own run of longs. Single cells are tested with a shift and a mask, and
+ * range queries along a row (any obstacle between x0 and x1, first free cell
+ * east of x, ...) handle 64 cells per instruction, so a whole sensor window
+ * or neighbourhood can be checked in a few word operations per row.
+ *
+ * The environment keeps one for the real world, the shared agent memory one
+ * for what the agents believe.
+ */
+public class TWObstacleBitboard {
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] bits;
+
+    public TWObstacleBitboard(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.bits = new long[wordsPerRow * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if x, y is marked, x and y must be in bounds
+     */
+    public boolean get(int x, int y) {
+        return (bits[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(int x, int y) {
+        bits[y * wordsPerRow + (x >>> 6)] |= (1L << x);
+    }
+
+    public void clear(int x, int y) {
+        bits[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+    }
+
+    public void set(int x, int y, boolean obstacle) {
+        if (obstacle) {
+            set(x, y);
+        } else {
+            clear(x, y);
+        }
+    }
+
+    public void clearAll() {
+        java.util.Arrays.fill(bits, 0L);
+    }
+
+    /**
+     * Number of longs used per row, see getWord.
+     */
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /**
+     * Raw access for callers doing their own word-parallel tests. Bit i of
+     * word w of row y is cell (w * 64 + i, y), bits past the width are 0.
+     */
+    public long getWord(int y, int w) {
+        return bits[y * wordsPerRow + w];
+    }
+
+    /**
+     * @return true if any cell of row y between x0 and x1 (inclusive, clipped
+     * to the grid) is an obstacle
+     */
+    public boolean anyInRow(int y, int x0, int x1) {
+        if (y < 0 || y >= height) {
+            return false;
+        }
+        x0 = Math.max(x0, 0);
+        x1 = Math.min(x1, width - 1);
+        if (x0 > x1) {
+            return false;
+        }
+        int base = y * wordsPerRow;
+        int w0 = x0 >>> 6;
+        int w1 = x1 >>> 6;
+        long first = -1L << x0;
+        long last = -1L >>> (63 - (x1 & 63));
+        if (w0 == w1) {
+            return (bits[base + w0] & first & last) != 0;
+        }
+        if ((bits[base + w0] & first) != 0) {
+            return true;
+        }
+        for (int w = w0 + 1; w < w1; w++) {
+            if (bits[base + w] != 0) {
+                return true;
+            }
+        }
+        return (bits[base + w1] & last) != 0;
+    }
+
+    /**
+     * @return true if any cell of column x between y0 and y1 (inclusive,
+     * clipped to the grid) is an obstacle
+     */
+    public boolean anyInColumn(int x, int y0, int y1) {
+        if (x < 0 || x >= width) {
+            return false;
+        }
+        y0 = Math.max(y0, 0);
+        y1 = Math.min(y1, height - 1);
+        int w = x >>> 6;
+        long mask = 1L << x;
+        for (int y = y0; y <= y1; y++) {
+            if ((bits[y * wordsPerRow + w] & mask) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any cell of the rectangle x0..x1, y0..y1 (inclusive,
+     * clipped to the grid) is an obstacle
+     */
+    public boolean anyInRect(int x0, int y0, int x1, int y1) {
+        y0 = Math.max(y0, 0);
+        y1 = Math.min(y1, height - 1);
+        for (int y = y0; y <= y1; y++) {
+            if (anyInRow(y, x0, x1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any cell within max(|dx|, |dy|) &lt;= range of x, y is
+     * an obstacle, i.e., in the sensor window of an agent at x, y
+     */
+    public boolean anyWithin(int x, int y, int range) {
+        return anyInRect(x - range, y - range, x + range, y + range);
+    }
+
+    /**
+     * @return number of obstacles in the rectangle x0..x1, y0..y1 (inclusive,
+     * clipped to the grid)
+     */
+    public int countInRect(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        x1 = Math.min(x1, width - 1);
+        y0 = Math.max(y0, 0);
+        y1 = Math.min(y1, height - 1);
+        if (x0 > x1) {
+            return 0;
+        }
+        int w0 = x0 >>> 6;
+        int w1 = x1 >>> 6;
+        long first = -1L << x0;
+        long last = -1L >>> (63 - (x1 & 63));
+        int count = 0;
+        for (int y = y0; y <= y1; y++) {
+            int base = y * wordsPerRow;
+            if (w0 == w1) {
+                count += Long.bitCount(bits[base + w0] & first & last);
+                continue;
+            }
+            count += Long.bitCount(bits[base + w0] & first);
+            for (int w = w0 + 1; w < w1; w++) {
+                count += Long.bitCount(bits[base + w]);
+            }
+            count += Long.bitCount(bits[base + w1] & last);
+        }
+        return count;
+    }
+
+    /**
+     * @return the first obstacle at or east of x on row y, or -1 if none
+     */
+    public int nextObstacleEast(int x, int y) {
+        return nextInRow(x, y, 0L);
+    }
+
+    /**
+     * @return the first free cell at or east of x on row y, or -1 if none
+     */
+    public int nextFreeEast(int x, int y) {
+        return nextInRow(x, y, -1L);
+    }
+
+    /**
+     * @return the first obstacle at or west of x on row y, or -1 if none
+     */
+    public int nextObstacleWest(int x, int y) {
+        return prevInRow(x, y, 0L);
+    }
+
+    /**
+     * @return the first free cell at or west of x on row y, or -1 if none
+     */
+    public int nextFreeWest(int x, int y) {
+        return prevInRow(x, y, -1L);
+    }
+
+    /**
+     * Scans east for a set bit of (word ^ flip), so flip = -1 looks for free
+     * cells.
+     */
+    private int nextInRow(int x, int y, long flip) {
+        if (x < 0) {
+            x = 0;
+        }
+        if (x >= width) {
+            return -1;
+        }
+        int base = y * wordsPerRow;
+        int w = x >>> 6;
+        long word = (bits[base + w] ^ flip) & (-1L << x);
+        while (word == 0) {
+            if (++w == wordsPerRow) {
+                return -1;
+            }
+            word = bits[base + w] ^ flip;
+        }
+        int found = (w << 6) + Long.numberOfTrailingZeros(word);
+        return found < width ? found : -1;
+    }
+
+    private int prevInRow(int x, int y, long flip) {
+        if (x >= width) {
+            x = width - 1;
+        }
+        if (x < 0) {
+            return -1;
+        }
+        int base = y * wordsPerRow;
+        int w = x >>> 6;
+        long word = (bits[base + w] ^ flip) & (-1L >>> (63 - (x & 63)));
+        while (word == 0) {
+            if (--w < 0) {
+                return -1;
+            }
+            word = bits[base + w] ^ flip;
+        }
+        return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+    }
+}
@@ -0,0 +1,280 @@
+package tileworld.environment;
+
+import java.util.Arrays;
+
+/**
+ * TWSpatialIndex
+ *
+ * Description:
+ *
+ * Cells of a grid tagged with a small type code (e.g. the TWCellPlanes
+ * codes), answering nearest and k-nearest queries by Manhattan distance per
+ * type without scanning the grid.
+ *
+ * Cells are grouped in 8x8 leaf buckets, each bucket keeps a linked list of
+ * its cells per type. Above the leaves is a pyramid of counts, each level
+ * halving the resolution of the one below, up to a single root. A query
+ * descends the pyramid depth first, nearest quadrant first, skipping nodes
+ * with no cell of the type or whose distance is already beaten, so only a
+ * few buckets near the answer are looked at. Setting a cell updates one
+ * count per level.
+ *
+ * Ties on distance go to the largest x, then the largest y, the same cell a
+ * column by column scan keeping the last of the nearest would return.
+ */
+public class TWSpatialIndex {
+
+    private static final int LEAF_SHIFT = 3;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final int DISTANCE_SHIFT = 2 * COORDINATE_BITS;
+
+    private final int width;
+    private final int height;
+    /** Type of each cell, 0 if not in the index */
+    private final byte[] cellType;
+    /** Links of the bucket list a cell is in, -1 at the ends */
+    private final int[] next;
+    private final int[] prev;
+    /** First cell of each type and leaf bucket, -1 if none */
+    private final int[][] head;
+    private final int levels;
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+    /** Cells of each type per level and node */
+    private final int[][][] counts;
+
+    /**
+     * @param width width of the grid, at most 2^21
+     * @param height height of the grid, at most 2^21
+     * @param types number of type codes, codes 1 to types - 1 are indexed
+     */
+    public TWSpatialIndex(int width, int height, int types) {
+        if (width > COORDINATE_MASK || height > COORDINATE_MASK) {
+            throw new IllegalArgumentException("Grid too large: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.cellType = new byte[width * height];
+        this.next = new int[width * height];
+        this.prev = new int[width * height];
+
+        int w = (width + (1 << LEAF_SHIFT) - 1) >> LEAF_SHIFT;
+        int h = (height + (1 << LEAF_SHIFT) - 1) >> LEAF_SHIFT;
+        int n = 1;
+        while (((w - 1) >> (n - 1)) > 0 || ((h - 1) >> (n - 1)) > 0) {
+            n++;
+        }
+        this.levels = n;
+        this.levelWidth = new int[levels];
+        this.levelHeight = new int[levels];
+        for (int l = 0; l < levels; l++) {
+            levelWidth[l] = ((w - 1) >> l) + 1;
+            levelHeight[l] = ((h - 1) >> l) + 1;
+        }
+
+        this.head = new int[types][w * h];
+        this.counts = new int[types][levels][];
+        for (int t = 1; t < types; t++) {
+            Arrays.fill(head[t], -1);
+            for (int l = 0; l < levels; l++) {
+                counts[t][l] = new int[levelWidth[l] * levelHeight[l]];
+            }
+        }
+    }
+
+    /**
+     * @return the type of x, y, 0 if not in the index
+     */
+    public byte type(int x, int y) {
+        return cellType[y * width + x];
+    }
+
+    /**
+     * @return the number of cells of the given type
+     */
+    public int count(int type) {
+        return counts[type][levels - 1][0];
+    }
+
+    /**
+     * Tags x, y with type, 0 takes it out of the index.
+     */
+    public void set(int x, int y, int type) {
+        int cell = y * width + x;
+        int old = cellType[cell];
+        if (old == type) {
+            return;
+        }
+        if (old != 0) {
+            unlink(cell, x, y, old);
+        }
+        cellType[cell] = (byte) type;
+        if (type != 0) {
+            link(cell, x, y, type);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(cellType, (byte) 0);
+        for (int t = 1; t < head.length; t++) {
+            Arrays.fill(head[t], -1);
+            for (int l = 0; l < levels; l++) {
+                Arrays.fill(counts[t][l], 0);
+            }
+        }
+    }
+
+    private void link(int cell, int x, int y, int type) {
+        int leaf = (y >> LEAF_SHIFT) * levelWidth[0] + (x >> LEAF_SHIFT);
+        int first = head[type][leaf];
+        next[cell] = first;
+        prev[cell] = -1;
+        if (first != -1) {
+            prev[first] = cell;
+        }
+        head[type][leaf] = cell;
+        for (int l = 0; l < levels; l++) {
+            counts[type][l][(y >> (LEAF_SHIFT + l)) * levelWidth[l] + (x >> (LEAF_SHIFT + l))]++;
+        }
+    }
+
+    private void unlink(int cell, int x, int y, int type) {
+        int leaf = (y >> LEAF_SHIFT) * levelWidth[0] + (x >> LEAF_SHIFT);
+        if (prev[cell] == -1) {
+            head[type][leaf] = next[cell];
+        } else {
+            next[prev[cell]] = next[cell];
+        }
+        if (next[cell] != -1) {
+            prev[next[cell]] = prev[cell];
+        }
+        for (int l = 0; l < levels; l++) {
+            counts[type][l][(y >> (LEAF_SHIFT + l)) * levelWidth[l] + (x >> (LEAF_SHIFT + l))]--;
+        }
+    }
+
+    /**
+     * @return the cell (y * width + x) of the given type nearest to x, y, or
+     * -1 if there is none
+     */
+    public int nearest(int type, int x, int y) {
+        long best = search(type, levels - 1, 0, 0, x, y, Long.MAX_VALUE);
+        return (best == Long.MAX_VALUE) ? -1 : cellOf(best);
+    }
+
+    /**
+     * Finds the k cells of the given type nearest to x, y.
+     *
+     * @param cells receives the cells, nearest first, its length is k
+     * @return the number of cells found, less than k if there are fewer
+     */
+    public int nearest(int type, int x, int y, int[] cells) {
+        int k = cells.length;
+        if (k == 0) {
+            return 0;
+        }
+        long[] keys = new long[k];
+        Arrays.fill(keys, Long.MAX_VALUE);
+        search(type, levels - 1, 0, 0, x, y, keys);
+        int found = 0;
+        while (found < k && keys[found] != Long.MAX_VALUE) {
+            cells[found] = cellOf(keys[found]);
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * Orders cells by distance, then largest x, then largest y, smallest
+     * first.
+     */
+    private long key(int cell, int qx, int qy) {
+        int x = cell % width;
+        int y = cell / width;
+        long distance = Math.abs(x - qx) + Math.abs(y - qy);
+        return (distance << DISTANCE_SHIFT) | ((long) (width - 1 - x) << COORDINATE_BITS) | (height - 1 - y);
+    }
+
+    private int cellOf(long key) {
+        int x = width - 1 - (int) ((key >> COORDINATE_BITS) & COORDINATE_MASK);
+        int y = height - 1 - (int) (key & COORDINATE_MASK);
+        return y * width + x;
+    }
+
+    /**
+     * @return the smallest key any cell of node level, nx, ny could have
+     */
+    private long bound(int level, int nx, int ny, int qx, int qy) {
+        int shift = LEAF_SHIFT + level;
+        int x0 = nx << shift;
+        int y0 = ny << shift;
+        int x1 = Math.min(x0 + (1 << shift) - 1, width - 1);
+        int y1 = Math.min(y0 + (1 << shift) - 1, height - 1);
+        long dx = Math.max(0, Math.max(x0 - qx, qx - x1));
+        long dy = Math.max(0, Math.max(y0 - qy, qy - y1));
+        return (dx + dy) << DISTANCE_SHIFT;
+    }
+
+    private long search(int type, int level, int nx, int ny, int qx, int qy, long best) {
+        if (counts[type][level][ny * levelWidth[level] + nx] == 0
+                || bound(level, nx, ny, qx, qy) > best) {
+            return best;
+        }
+        if (level == 0) {
+            for (int cell = head[type][ny * levelWidth[0] + nx]; cell != -1; cell = next[cell]) {
+                best = Math.min(best, key(cell, qx, qy));
+            }
+            return best;
+        }
+        int child = level - 1;
+        int middle = LEAF_SHIFT + child;
+        int cx = (qx >> middle) > 2 * nx ? 1 : 0;
+        int cy = (qy >> middle) > 2 * ny ? 1 : 0;
+        for (int i = 0; i < 4; i++) {
+            int x = 2 * nx + (cx ^ (i & 1));
+            int y = 2 * ny + (cy ^ (i >> 1));
+            if (x < levelWidth[child] && y < levelHeight[child]) {
+                best = search(type, child, x, y, qx, qy, best);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * k-nearest version of search, keys is kept sorted and its last entry
+     * is the key to beat.
+     */
+    private void search(int type, int level, int nx, int ny, int qx, int qy, long[] keys) {
+        int k = keys.length;
+        if (counts[type][level][ny * levelWidth[level] + nx] == 0
+                || bound(level, nx, ny, qx, qy) > keys[k - 1]) {
+            return;
+        }
+        if (level == 0) {
+            for (int cell = head[type][ny * levelWidth[0] + nx]; cell != -1; cell = next[cell]) {
+                long key = key(cell, qx, qy);
+                if (key < keys[k - 1]) {
+                    int i = k - 1;
+                    while (i > 0 && keys[i - 1] > key) {
+                        keys[i] = keys[i - 1];
+                        i--;
+                    }
+                    keys[i] = key;
+                }
+            }
+            return;
+        }
+        int child = level - 1;
+        int middle = LEAF_SHIFT + child;
+        int cx = (qx >> middle) > 2 * nx ? 1 : 0;
+        int cy = (qy >> middle) > 2 * ny ? 1 : 0;
+        for (int i = 0; i < 4; i++) {
+            int x = 2 * nx + (cx ^ (i & 1));
+            int y = 2 * ny + (cy ^ (i >> 1));
+            if (x < levelWidth[child] && y < levelHeight[child]) {
+                search(type, child, x, y, qx, qy, keys);
+            }
+        }
+    }
+}
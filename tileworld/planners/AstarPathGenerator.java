@@ -4,10 +4,10 @@
  */
 package tileworld.planners;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import tileworld.agent.TWAgent;
 import tileworld.environment.TWEnvironment;
+import tileworld.environment.TWObstacleBitboard;
 
 /**
  * TWContextBuilder
@@ -27,23 +27,86 @@ import tileworld.environment.TWEnvironment;
  *  algorithms. When the environment is highly dynamic producing such
  * long term plans begins to make less sense. Another reactive agent may perform
  * better in certain circumstances.
+ *
+ * The search state lives in flat arrays indexed by cell (y * width + x). The
+ * open list is a binary heap indexed by cell, so membership tests and
+ * decrease-key are O(1) and O(log n), ties on f are broken first in first
+ * out as in the original sorted list. Each search gets a new generation
+ * number and a cell's state only counts if it was stamped with the current
+ * generation, so nothing is cleared between searches.
+ *
+ * The search state is scratch space, not needed between searches, and is
+ * shared by all generators searching on the same thread rather than kept
+ * per generator. Memory then grows with threads x cells instead of agents
+ * x cells. A generator must not be used by two threads at once.
  */
 public class AstarPathGenerator implements TWPathGenerator {
 
-    /** The set of nodes that have been searched through */
-    private ArrayList closed = new ArrayList();
-    /** The set of nodes that we do not yet consider fully searched */
-    private SortedList open = new SortedList();
     /** The map being searched */
     private TWEnvironment map;
     /** The maximum depth of search we're willing to accept before giving up */
     private int maxSearchDistance;
-    /** The complete set of nodes across the map */
-    private Node[][] nodes;
     /** True if we allow diaganol movement */
     private boolean allowDiagMovement = false;
     /** Reference to this agent, for looking in memory */
     private TWAgent agent;
+    /** Obstacles to plan around, if null those in the agent's memory */
+    private TWObstacleBitboard blocked;
+
+    private final int width;
+    private final int height;
+
+    /** Neighbour offsets, in the order the original generator visited them */
+    private final int[] neighbourX;
+    private final int[] neighbourY;
+
+    /**
+     * The search state of each thread, grown to the largest map searched on
+     * it.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        int generation;
+        int[] seen = new int[0];
+        int[] closed;
+        double[] cost;
+        double[] total;
+        int[] parent;
+        int[] depth;
+        int[] order;
+        int[] heapPosition;
+        int[] heap;
+    }
+
+    /**
+     * Search state, bound to the thread's scratch for the duration of a
+     * search. A cell's cost, parent, depth, order and heap position are
+     * valid only if seen[cell] == generation, it is closed if
+     * closed[cell] == generation.
+     */
+    private Scratch scratch;
+    private int generation;
+    private int[] seen;
+    private int[] closed;
+    private double[] cost;
+    /** cost + heuristic, the heap key */
+    private double[] total;
+    private int[] parent;
+    private int[] depth;
+    /** Insertion number, breaks ties on total first in first out */
+    private int[] order;
+    /** Position in heap, -1 if not in the open list */
+    private int[] heapPosition;
+    /** The open list, cells ordered by total then order */
+    private int[] heap;
+    private int heapSize;
+    private int insertions;
 
     /**
      * Use the Euclidian distance heuristic here (could also try manhattan)
@@ -63,22 +126,48 @@ public class AstarPathGenerator implements TWPathGenerator {
     /**
      * Create a path finder
      *
-     * @param heuristic The heuristic used to determine the search order of the map
      * @param map The map to be searched
+     * @param agent The agent whose memory tells which cells are blocked
      * @param maxSearchDistance The maximum depth we'll search before giving up
-     * @param allowDiagMovement True if the search should try diaganol movement
      */
     public AstarPathGenerator(TWEnvironment map, TWAgent agent, int maxSearchDistance) {
+        this(map, agent, null, maxSearchDistance);
+    }
 
+    /**
+     * Create a path finder around a fixed set of obstacles, e.g., the real
+     * ones of the environment.
+     *
+     * @param map The map to be searched
+     * @param blocked The cells which can't be entered
+     * @param maxSearchDistance The maximum depth we'll search before giving up
+     */
+    public AstarPathGenerator(TWEnvironment map, TWObstacleBitboard blocked, int maxSearchDistance) {
+        this(map, null, blocked, maxSearchDistance);
+    }
+
+    private AstarPathGenerator(TWEnvironment map, TWAgent agent, TWObstacleBitboard blocked, int maxSearchDistance) {
         this.agent = agent;
         this.map = map;
+        this.blocked = blocked;
         this.maxSearchDistance = maxSearchDistance;
-
-        //create the nodes used to store information about plan and map
-        nodes = new Node[map.getxDimension()][map.getyDimension()];
-        for (int x = 0; x < map.getxDimension(); x++) {
-            for (int y = 0; y < map.getyDimension(); y++) {
-                nodes[x][y] = new Node(x, y);
+        this.width = map.getxDimension();
+        this.height = map.getyDimension();
+
+        int n = allowDiagMovement ? 8 : 4;
+        neighbourX = new int[n];
+        neighbourY = new int[n];
+        n = 0;
+        for (int x = -1; x < 2; x++) {
+            for (int y = -1; y < 2; y++) {
+                // not a neighbour, its the current tile, and if we're not
+                // allowing diaganol movement then only one of x or y can be set
+                if (((x == 0) && (y == 0)) || (!allowDiagMovement && (x != 0) && (y != 0))) {
+                    continue;
+                }
+                neighbourX[n] = x;
+                neighbourY[n] = y;
+                n++;
             }
         }
     }
@@ -87,109 +176,101 @@ public class AstarPathGenerator implements TWPathGenerator {
      * @see PathFinder#findPath(Mover, int, int, int, int)
      */
     public TWPath findPath(int sx, int sy, int tx, int ty) {
+        try {
+            return search(sx, sy, tx, ty);
+        } finally {
+            release();
+        }
+    }
+
+    private TWPath search(int sx, int sy, int tx, int ty) {
+        TWObstacleBitboard obstacles = (blocked != null) ? blocked
+                : agent.getMemory().getSharedMemory().getObstacleBitboard();
+
         // easy first check, if the destination is blocked, we can't get there
-        if (agent.getMemory().getSharedMemory().isCellBlocked(tx, ty)) {
+        if (obstacles.get(tx, ty)) {
             return null;
         }
 
         // initial state for A*. The closed group is empty. Only the starting
         // tile is in the open list and it's cost is zero, i.e. we're already there
-        nodes[sx][sy].cost = 0;
-        nodes[sx][sy].depth = 0;
-        closed.clear();
-        open.clear();
-        open.add(nodes[sx][sy]);
-
-        nodes[tx][ty].parent = null;
+        newSearch();
+        int start = sy * width + sx;
+        int target = ty * width + tx;
+        visit(start, 0, -1, 0, getHeuristicCost(sx, sy, tx, ty));
+        push(start);
 
         // while we haven't found the goal and haven't exceeded our max search depth
         int maxDepth = 0;
-        while ((maxDepth < maxSearchDistance) && (open.size() != 0)) {
+        while ((maxDepth < maxSearchDistance) && (heapSize != 0)) {
             // pull out the first node in our open list, this is determined to
             // be the most likely to be the next step based on our heuristic
-            Node current = getFirstInOpen();
-            if (current == nodes[tx][ty]) {
+            int current = heap[0];
+            if (current == target) {
                 break;
             }
 
-            removeFromOpen(current);
-            addToClosed(current);
+            pop();
+            closed[current] = generation;
 
+            int cx = current % width;
+            int cy = current / width;
             // search through all the neighbours of the current node evaluating
             // them as next steps
-            for (int x = -1; x < 2; x++) {
-                for (int y = -1; y < 2; y++) {
-                    // not a neighbour, its the current tile
-                    if ((x == 0) && (y == 0)) {
+            for (int k = 0; k < neighbourX.length; k++) {
+                int xp = cx + neighbourX[k];
+                int yp = cy + neighbourY[k];
+
+                //Check that the cell is valid (in bounds) and that according
+                //to our memory the cell isn't blocked
+                if (!isValidLocation(sx, sy, xp, yp) || obstacles.get(xp, yp)) {
+                    continue;
+                }
+                // the cost to get to this node is cost the current plus the movement
+                // cost to reach this node. Note that the heursitic value is only used
+                // in the open list
+                double nextStepCost = cost[current] + getMovementCost(cx, cy, xp, yp);
+                int neighbour = yp * width + xp;
+
+                if (seen[neighbour] == generation) {
+                    // if the new cost is lower than it has been previously the
+                    // node needs to be re-evaluated, open or closed
+                    if (nextStepCost >= cost[neighbour]) {
                         continue;
                     }
-
-                    // if we're not allowing diaganol movement then only
-                    // one of x or y can be set
-                    if (!allowDiagMovement) {
-                        if ((x != 0) && (y != 0)) {
-                            continue;
-                        }
-                    }
-
-                    // determine the location of the neighbour and evaluate it
-                    int xp = x + current.x;
-                    int yp = y + current.y;
-
-
-                    //Check that the cell is valid (in bounds) and that according
-                    //to our memory the cell isn't blocked
-                    if (isValidLocation(sx, sy, xp, yp) && !agent.getMemory().getSharedMemory().isCellBlocked(xp, yp)) {
-                        // the cost to get to this node is cost the current plus the movement
-                        // cost to reach this node. Note that the heursitic value is only used
-                        // in the sorted open list
-                        double nextStepCost = current.cost + getMovementCost(current.x, current.y, xp, yp);
-                        Node neighbour = nodes[xp][yp];
-                        neighbour.setVisited(true);
-
-                        // if the new cost we've determined for this node is lower than
-                        // it has been previously makes sure the node hasn't been discarded. We've
-                        // determined that there might have been a better path to get to
-                        // this node so it needs to be re-evaluated
-                        if (nextStepCost < neighbour.cost) {
-                            if (inOpenList(neighbour)) {
-                                removeFromOpen(neighbour);
-                            }
-                            if (inClosedList(neighbour)) {
-                                removeFromClosed(neighbour);
-                            }
-                        }
-
-                        // if the node hasn't already been processed and discarded then
-                        // reset it's cost to our current cost and add it as a next possible
-                        // step (i.e. to the open list)
-                        if (!inOpenList(neighbour) && !(inClosedList(neighbour))) {
-                            neighbour.cost = nextStepCost;
-                            neighbour.heuristic = getHeuristicCost(xp, yp, tx, ty);
-                            maxDepth = Math.max(maxDepth, neighbour.setParent(current));
-                            addToOpen(neighbour);
-                        }
+                    if (heapPosition[neighbour] >= 0) {
+                        // decrease-key, the node moves behind its equals
+                        int position = heapPosition[neighbour];
+                        visit(neighbour, nextStepCost, current, depth[current] + 1, getHeuristicCost(xp, yp, tx, ty));
+                        maxDepth = Math.max(maxDepth, depth[neighbour]);
+                        heapPosition[neighbour] = position;
+                        siftUp(position);
+                        siftDown(heapPosition[neighbour]);
+                        continue;
                     }
+                    closed[neighbour] = 0;
                 }
+                visit(neighbour, nextStepCost, current, depth[current] + 1, getHeuristicCost(xp, yp, tx, ty));
+                maxDepth = Math.max(maxDepth, depth[neighbour]);
+                push(neighbour);
             }
         }
 
         // since we've got an empty open list or we've run out of search
         // there was no path. Just return null
-        if (nodes[tx][ty].parent == null) {
+        if (seen[target] != generation || parent[target] < 0) {
             return null;
         }
 
         // At this point we've definitely found a path so we can uses the parent
         // references of the nodes to find out way from the target location back
         // to the start recording the nodes on the way.
-        TWPath path = new TWPath(tx,ty);
-        Node target = nodes[tx][ty];
+        TWPath path = new TWPath(tx, ty);
         //skip the goal as the step before will tell us how to get there.
-        target = target.parent;
-        while (target != nodes[sx][sy]) {
-            path.prependStep(target.x, target.y);
-            target = target.parent;
+        int step = parent[target];
+        while (step != start) {
+            path.prependStep(step % width, step / width);
+            step = parent[step];
         }
 
         //in our type of plan we don't include current location.
@@ -200,69 +281,123 @@ public class AstarPathGenerator implements TWPathGenerator {
     }
 
     /**
-     * Get the first element from the open list. This is the next
-     * one to be searched.
-     *
-     * @return The first element in the open list
+     * Starts a new generation in the thread's scratch, growing it to this
+     * map first if needed.
      */
-    protected Node getFirstInOpen() {
-        return (Node) open.first();
+    private void newSearch() {
+        scratch = SCRATCH.get();
+        int cells = width * height;
+        if (scratch.seen.length < cells) {
+            scratch.seen = new int[cells];
+            scratch.closed = new int[cells];
+            scratch.cost = new double[cells];
+            scratch.total = new double[cells];
+            scratch.parent = new int[cells];
+            scratch.depth = new int[cells];
+            scratch.order = new int[cells];
+            scratch.heapPosition = new int[cells];
+            scratch.heap = new int[cells];
+        }
+        if (++scratch.generation == Integer.MAX_VALUE) {
+            Arrays.fill(scratch.seen, 0);
+            Arrays.fill(scratch.closed, 0);
+            scratch.generation = 1;
+        }
+        generation = scratch.generation;
+        seen = scratch.seen;
+        closed = scratch.closed;
+        cost = scratch.cost;
+        total = scratch.total;
+        parent = scratch.parent;
+        depth = scratch.depth;
+        order = scratch.order;
+        heapPosition = scratch.heapPosition;
+        heap = scratch.heap;
+        heapSize = 0;
+        insertions = 0;
     }
 
     /**
-     * Add a node to the open list
-     *
-     * @param node The node to be added to the open list
+     * Unbinds the scratch, which belongs to the thread, not this generator.
      */
-    protected void addToOpen(Node node) {
-        open.add(node);
+    private void release() {
+        scratch = null;
+        seen = null;
+        closed = null;
+        cost = null;
+        total = null;
+        parent = null;
+        depth = null;
+        order = null;
+        heapPosition = null;
+        heap = null;
     }
 
-    /**
-     * Check if a node is in the open list
-     *
-     * @param node The node to check for
-     * @return True if the node given is in the open list
-     */
-    protected boolean inOpenList(Node node) {
-        return open.contains(node);
+    private void visit(int cell, double g, int from, int d, double heuristic) {
+        seen[cell] = generation;
+        cost[cell] = g;
+        total[cell] = heuristic + g;
+        parent[cell] = from;
+        depth[cell] = d;
+        order[cell] = insertions++;
+        heapPosition[cell] = -1;
     }
 
     /**
-     * Remove a node from the open list
-     *
-     * @param node The node to remove from the open list
+     * @return true if a comes before b in the open list
      */
-    protected void removeFromOpen(Node node) {
-        open.remove(node);
+    private boolean before(int a, int b) {
+        return total[a] < total[b] || (total[a] == total[b] && order[a] < order[b]);
     }
 
-    /**
-     * Add a node to the closed list
-     *
-     * @param node The node to add to the closed list
-     */
-    protected void addToClosed(Node node) {
-        closed.add(node);
+    private void push(int cell) {
+        heap[heapSize] = cell;
+        heapPosition[cell] = heapSize;
+        siftUp(heapSize++);
     }
 
-    /**
-     * Check if the node supplied is in the closed list
-     *
-     * @param node The node to search for
-     * @return True if the node specified is in the closed list
-     */
-    protected boolean inClosedList(Node node) {
-        return closed.contains(node);
+    private void pop() {
+        heapPosition[heap[0]] = -1;
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            heapPosition[last] = 0;
+            siftDown(0);
+        }
     }
 
-    /**
-     * Remove a node from the closed list
-     *
-     * @param node The node to remove from the closed list
-     */
-    protected void removeFromClosed(Node node) {
-        closed.remove(node);
+    private void siftUp(int i) {
+        int cell = heap[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (!before(cell, heap[p])) {
+                break;
+            }
+            heap[i] = heap[p];
+            heapPosition[heap[i]] = i;
+            i = p;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+
+    private void siftDown(int i) {
+        int cell = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < heapSize && before(heap[c + 1], heap[c])) {
+                c++;
+            }
+            if (!before(heap[c], cell)) {
+                break;
+            }
+            heap[i] = heap[c];
+            heapPosition[heap[i]] = i;
+            i = c;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
     }
 
     /**
@@ -308,144 +443,4 @@ public class AstarPathGenerator implements TWPathGenerator {
     public double getHeuristicCost(int x, int y, int tx, int ty) {
         return this.getCost(x, y, tx, ty);
     }
-
-    /**
-     * A simple sorted list
-     *
-     * @author kevin
-     */
-    private class SortedList {
-
-        /** The list of elements */
-        private ArrayList list = new ArrayList();
-
-        /**
-         * Retrieve the first element from the list
-         *
-         * @return The first element from the list
-         */
-        public Object first() {
-            return list.get(0);
-        }
-
-        /**
-         * Empty the list
-         */
-        public void clear() {
-            list.clear();
-        }
-
-        /**
-         * Add an element to the list - causes sorting
-         *
-         * @param o The element to add
-         */
-        public void add(Object o) {
-            list.add(o);
-            Collections.sort(list);
-        }
-
-        /**
-         * Remove an element from the list
-         *
-         * @param o The element to remove
-         */
-        public void remove(Object o) {
-            list.remove(o);
-        }
-
-        /**
-         * Get the number of elements in the list
-         *
-         * @return The number of element in the list
-         */
-        public int size() {
-            return list.size();
-        }
-
-        /**
-         * Check if an element is in the list
-         *
-         * @param o The element to search for
-         * @return True if the element is in the list
-         */
-        public boolean contains(Object o) {
-            return list.contains(o);
-        }
-    }
-
-    /**
-     * A single node in the search graph
-     */
-    protected class Node implements Comparable {
-
-        /** The x coordinate of the node */
-        private int x;
-        /** The y coordinate of the node */
-        private int y;
-        /** The path cost for this node */
-        private double cost;
-        /** The parent of this node, how we reached it in the search */
-        private Node parent;
-        /** The heuristic cost of this node */
-        private double heuristic;
-        /** The search depth of this node */
-        private int depth;
-        /** 
-         * In the original code, visited was part of the map. However, 
-         * because some implementations may not use path finding (reactive) 
-         * I think it better to keep it here. Note, this is only used for debugging.
-         */
-        private boolean visited;
-
-        /**
-         * Create a new node
-         *
-         * @param x The x coordinate of the node
-         * @param y The y coordinate of the node
-         */
-        public Node(int x, int y) {
-            this.x = x;
-            this.y = y;
-        }
-
-        /**
-         * Set the parent of this node
-         *
-         * @param parent The parent node which lead us to this node
-         * @return The depth we have no reached in searching
-         */
-        public int setParent(Node parent) {
-            depth = parent.depth + 1;
-            this.parent = parent;
-
-            return depth;
-        }
-
-        /**
-         * @see Comparable#compareTo(Object)
-         */
-        public int compareTo(Object other) {
-            Node o = (Node) other;
-
-            double f = heuristic + cost;
-            double of = o.heuristic + o.cost;
-
-            if (f < of) {
-                return -1;
-            } else if (f > of) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-
-        public boolean pathFinderVisited() {
-            return visited;
-        }
-
-        public void setVisited(boolean b) {
-            visited = b;
-        }
-    }
 }
@@ -0,0 +1,460 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+import tileworld.agent.TWAgent;
+import tileworld.environment.TWDirection;
+import tileworld.environment.TWEnvironment;
+import tileworld.environment.TWObstacleBitboard;
+
+/**
+ * DStarLitePathGenerator
+ *
+ * Description:
+ *
+ * Incremental path finding with D* Lite (Koenig and Likhachev, 2002), for
+ * the same 4-connected, unit cost moves as AstarPathGenerator. Obstacles
+ * appear and expire all the time, so a path found a few steps ago is often
+ * just slightly wrong; rather than searching again from nothing this
+ * generator keeps its search between calls and repairs only the part the
+ * changes affect.
+ *
+ * The search runs backwards, from the goal to the agent, so the distances
+ * to the goal stay valid as the agent moves along. Each call to findPath
+ * with the same goal:
+ *
+ * 1. compares the obstacles with the copy kept from the last call, a word
+ *    of the bitboard (64 cells) at a time, and for each cell that flipped
+ *    re-evaluates the cells next to it,
+ * 2. raises the key modifier by how far the start moved, so queued keys
+ *    need not be recomputed,
+ * 3. expands queued cells only until the start's distance is settled, and
+ * 4. reads the path back by going downhill in distance from the start.
+ *
+ * A new goal starts the search afresh. The state is kept per generator, as
+ * it must survive between calls: about 30 bytes per cell of the map, so on
+ * large maps one generator per agent costs memory where A* shares its
+ * arrays per thread. A generator must not be used by two threads at once.
+ */
+public class DStarLitePathGenerator implements TWPathGenerator {
+
+    /** Distance of cells the goal can't be reached from */
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    /** The map being searched */
+    private final TWEnvironment map;
+    /** Longest path, in steps, we're willing to find */
+    private final int maxSearchDistance;
+    /** Reference to this agent, for looking in memory */
+    private final TWAgent agent;
+    /** Obstacles to plan around, if null those in the agent's memory */
+    private final TWObstacleBitboard blocked;
+
+    private final int width;
+    private final int height;
+
+    /**
+     * Search state, allocated on first use. A cell's g, rhs and heap position
+     * are valid only if stamp[cell] == generation, otherwise g and rhs are
+     * INFINITY and the cell is not queued.
+     */
+    private int generation;
+    private int[] stamp;
+    /** Distance to the goal as last expanded */
+    private int[] g;
+    /** Distance to the goal one step ahead, from the neighbours' g */
+    private int[] rhs;
+    /** Queue key: k1 in the high 32 bits, k2 in the low */
+    private long[] key;
+    /** Position in heap, -1 if not queued */
+    private int[] heapPosition;
+    private int[] heap;
+    private int heapSize;
+
+    /** The obstacles as they were at the end of the last call */
+    private TWObstacleBitboard known;
+    private long[] knownWords;
+    private int goal = -1;
+    private int start;
+    /** Start at the last call and the key modifier, see D* Lite */
+    private int lastStart;
+    private int km;
+
+    /** Cells expanded by the last call, for measuring */
+    private int expanded;
+
+    /**
+     * Create a path finder
+     *
+     * @param map The map to be searched
+     * @param agent The agent whose memory tells which cells are blocked
+     * @param maxSearchDistance The longest path, in steps, to look for
+     */
+    public DStarLitePathGenerator(TWEnvironment map, TWAgent agent, int maxSearchDistance) {
+        this(map, agent, null, maxSearchDistance);
+    }
+
+    /**
+     * Create a path finder around a set of obstacles, e.g., the real ones of
+     * the environment. The bitboard is read again at every call, so changes
+     * to it are picked up.
+     *
+     * @param map The map to be searched
+     * @param blocked The cells which can't be entered
+     * @param maxSearchDistance The longest path, in steps, to look for
+     */
+    public DStarLitePathGenerator(TWEnvironment map, TWObstacleBitboard blocked, int maxSearchDistance) {
+        this(map, null, blocked, maxSearchDistance);
+    }
+
+    private DStarLitePathGenerator(TWEnvironment map, TWAgent agent, TWObstacleBitboard blocked, int maxSearchDistance) {
+        this.map = map;
+        this.agent = agent;
+        this.blocked = blocked;
+        this.maxSearchDistance = maxSearchDistance;
+        this.width = map.getxDimension();
+        this.height = map.getyDimension();
+    }
+
+    /**
+     * @return the number of cells expanded by the last findPath
+     */
+    public int getExpanded() {
+        return expanded;
+    }
+
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        TWObstacleBitboard obstacles = (blocked != null) ? blocked
+                : agent.getMemory().getSharedMemory().getObstacleBitboard();
+        expanded = 0;
+        // if the destination is blocked, we can't get there
+        if (obstacles.get(tx, ty) || (sx == tx && sy == ty)) {
+            return null;
+        }
+        if (stamp == null) {
+            allocate();
+        }
+        start = sy * width + sx;
+        int target = ty * width + tx;
+        if (target != goal || obstacles != known) {
+            reset(target, obstacles);
+        } else {
+            km += distance(lastStart, start);
+            lastStart = start;
+            applyChanges(obstacles);
+        }
+        computeShortestPath();
+
+        // the start itself may be left unexpanded, its rhs is exact
+        int length = rhs(start);
+        if (length >= INFINITY || length > maxSearchDistance) {
+            return null;
+        }
+        return buildPath(length);
+    }
+
+    /**
+     * Forgets the search, e.g. to free its memory; the next call starts
+     * afresh.
+     */
+    public void reset() {
+        stamp = null;
+        g = null;
+        rhs = null;
+        key = null;
+        heapPosition = null;
+        heap = null;
+        heapSize = 0;
+        known = null;
+        knownWords = null;
+        goal = -1;
+    }
+
+    private void allocate() {
+        int cells = width * height;
+        stamp = new int[cells];
+        g = new int[cells];
+        rhs = new int[cells];
+        key = new long[cells];
+        heapPosition = new int[cells];
+        heap = new int[cells];
+        generation = 0;
+    }
+
+    /**
+     * Starts a search towards a new goal.
+     */
+    private void reset(int target, TWObstacleBitboard obstacles) {
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        heapSize = 0;
+        km = 0;
+        goal = target;
+        lastStart = start;
+        known = obstacles;
+        int words = obstacles.getWordsPerRow() * height;
+        if (knownWords == null || knownWords.length != words) {
+            knownWords = new long[words];
+        }
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int w = 0; w < obstacles.getWordsPerRow(); w++, i++) {
+                knownWords[i] = obstacles.getWord(y, w);
+            }
+        }
+        touch(goal);
+        rhs[goal] = 0;
+        insert(goal);
+    }
+
+    /**
+     * Re-evaluates the neighbours of every cell that became blocked or free
+     * since the last call: the cost of stepping into it changed.
+     */
+    private void applyChanges(TWObstacleBitboard obstacles) {
+        int wordsPerRow = obstacles.getWordsPerRow();
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int w = 0; w < wordsPerRow; w++, i++) {
+                long word = obstacles.getWord(y, w);
+                long changed = word ^ knownWords[i];
+                if (changed == 0) {
+                    continue;
+                }
+                knownWords[i] = word;
+                while (changed != 0) {
+                    int x = (w << 6) + Long.numberOfTrailingZeros(changed);
+                    changed &= changed - 1;
+                    int cell = y * width + x;
+                    if (x > 0) {
+                        updateVertex(cell - 1);
+                    }
+                    if (x < width - 1) {
+                        updateVertex(cell + 1);
+                    }
+                    if (y > 0) {
+                        updateVertex(cell - width);
+                    }
+                    if (y < height - 1) {
+                        updateVertex(cell + width);
+                    }
+                }
+            }
+        }
+    }
+
+    private void computeShortestPath() {
+        while (heapSize != 0 && (key[heap[0]] < calculateKey(start) || rhs(start) > g(start))) {
+            int u = heap[0];
+            long newKey = calculateKey(u);
+            if (key[u] < newKey) {
+                // queued before the start moved on
+                key[u] = newKey;
+                siftDown(0);
+            } else if (g[u] > rhs[u]) {
+                // overconsistent, settle it
+                g[u] = rhs[u];
+                remove(u);
+                expanded++;
+                updateNeighbours(u);
+            } else {
+                // underconsistent, a way through it was lost
+                g[u] = INFINITY;
+                expanded++;
+                updateNeighbours(u);
+                updateVertex(u);
+            }
+        }
+    }
+
+    private void updateNeighbours(int cell) {
+        int x = cell % width;
+        int y = cell / width;
+        if (x > 0) {
+            updateVertex(cell - 1);
+        }
+        if (y > 0) {
+            updateVertex(cell - width);
+        }
+        if (y < height - 1) {
+            updateVertex(cell + width);
+        }
+        if (x < width - 1) {
+            updateVertex(cell + 1);
+        }
+    }
+
+    /**
+     * Recomputes rhs of cell from its neighbours and queues it if it is
+     * inconsistent.
+     */
+    private void updateVertex(int cell) {
+        touch(cell);
+        if (cell != goal) {
+            int x = cell % width;
+            int y = cell / width;
+            int best = INFINITY;
+            if (x > 0) {
+                best = Math.min(best, stepCost(cell - 1));
+            }
+            if (y > 0) {
+                best = Math.min(best, stepCost(cell - width));
+            }
+            if (y < height - 1) {
+                best = Math.min(best, stepCost(cell + width));
+            }
+            if (x < width - 1) {
+                best = Math.min(best, stepCost(cell + 1));
+            }
+            rhs[cell] = best;
+        }
+        if (g[cell] != rhs[cell]) {
+            if (heapPosition[cell] >= 0) {
+                key[cell] = calculateKey(cell);
+                siftUp(heapPosition[cell]);
+                siftDown(heapPosition[cell]);
+            } else {
+                insert(cell);
+            }
+        } else if (heapPosition[cell] >= 0) {
+            remove(cell);
+        }
+    }
+
+    /**
+     * @return the distance to the goal stepping into next, INFINITY if next
+     * is blocked
+     */
+    private int stepCost(int next) {
+        int x = next % width;
+        int y = next / width;
+        if ((knownWords[y * known.getWordsPerRow() + (x >>> 6)] & (1L << x)) != 0) {
+            return INFINITY;
+        }
+        return Math.min(g(next) + 1, INFINITY);
+    }
+
+    /**
+     * Follows the distances downhill from the start, of equal neighbours
+     * taking the first in A*'s neighbour order.
+     */
+    private TWPath buildPath(int length) {
+        TWPath path = new TWPath(start % width, start / width);
+        int cell = start;
+        for (int steps = 0; steps < length && cell != goal; steps++) {
+            int x = cell % width;
+            int y = cell / width;
+            int next = -1;
+            int best = INFINITY;
+            int[] candidates = {(x > 0) ? cell - 1 : -1, (y > 0) ? cell - width : -1,
+                (y < height - 1) ? cell + width : -1, (x < width - 1) ? cell + 1 : -1};
+            for (int c : candidates) {
+                if (c >= 0 && stepCost(c) < best) {
+                    best = stepCost(c);
+                    next = c;
+                }
+            }
+            if (next < 0) {
+                return null;
+            }
+            path.appendStep(new TWPathStep(x, y, direction(cell, next)));
+            cell = next;
+        }
+        return (cell == goal) ? path : null;
+    }
+
+    private TWDirection direction(int from, int to) {
+        if (to == from + 1) {
+            return TWDirection.E;
+        } else if (to == from - 1) {
+            return TWDirection.W;
+        } else if (to > from) {
+            return TWDirection.S;
+        }
+        return TWDirection.N;
+    }
+
+    /**
+     * Manhattan distance between two cells, the heuristic.
+     */
+    private int distance(int a, int b) {
+        return Math.abs(a % width - b % width) + Math.abs(a / width - b / width);
+    }
+
+    private long calculateKey(int cell) {
+        int m = Math.min(g(cell), rhs(cell));
+        return ((long) (m + distance(start, cell) + km) << 32) | m;
+    }
+
+    private int g(int cell) {
+        return (stamp[cell] == generation) ? g[cell] : INFINITY;
+    }
+
+    private int rhs(int cell) {
+        return (stamp[cell] == generation) ? rhs[cell] : INFINITY;
+    }
+
+    /**
+     * Makes cell's state valid for this generation, unexpanded if it was not.
+     */
+    private void touch(int cell) {
+        if (stamp[cell] != generation) {
+            stamp[cell] = generation;
+            g[cell] = INFINITY;
+            rhs[cell] = INFINITY;
+            heapPosition[cell] = -1;
+        }
+    }
+
+    private void insert(int cell) {
+        key[cell] = calculateKey(cell);
+        heap[heapSize] = cell;
+        heapPosition[cell] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private void remove(int cell) {
+        int i = heapPosition[cell];
+        heapPosition[cell] = -1;
+        int last = heap[--heapSize];
+        if (i < heapSize) {
+            heap[i] = last;
+            heapPosition[last] = i;
+            siftUp(i);
+            siftDown(heapPosition[last]);
+        }
+    }
+
+    private void siftUp(int i) {
+        int cell = heap[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (key[cell] >= key[heap[p]]) {
+                break;
+            }
+            heap[i] = heap[p];
+            heapPosition[heap[i]] = i;
+            i = p;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+
+    private void siftDown(int i) {
+        int cell = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < heapSize && key[heap[c + 1]] < key[heap[c]]) {
+                c++;
+            }
+            if (key[heap[c]] >= key[cell]) {
+                break;
+            }
+            heap[i] = heap[c];
+            heapPosition[heap[i]] = i;
+            i = c;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+}
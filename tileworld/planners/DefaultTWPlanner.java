@@ -4,9 +4,12 @@
  */
 package tileworld.planners;
 
+import java.util.Iterator;
 import sim.util.Int2D;
+import tileworld.TWConfiguration;
 import tileworld.agent.SimpleTWAgent;
 import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemorySingleton;
 import tileworld.environment.*;
 
 /**
@@ -40,52 +43,199 @@ import tileworld.environment.*;
  *
  * The default path generator might use an implementation of A* for each of the behaviors
  *
+ * Plans are kept between steps and followed one step at a time, a new one
+ * is only searched for when the current one is no good any more:
+ *
+ * - it has been followed to the end or the agent is not where it expects,
+ * - its goal is no longer in memory, or is no longer what the agent wants
+ *   (a tile while carrying three),
+ * - a cell still to be crossed is remembered as an obstacle,
+ * - a wanted object strictly closer than the goal is remembered.
+ *
+ * With the field planner (TWConfiguration.getPlanner()) the goal is the
+ * wanted object nearest by path instead, found by one flood of the memory
+ * with TWDistanceField, which also gives the path to it. Behind obstacles the
+ * nearest by Manhattan distance may be far round, or not reachable at all.
+ *
+ * A step whose move failed, e.g. because another agent was in the way, is
+ * tried again.
+ *
  */
 public class DefaultTWPlanner implements TWPlanner {
     private TWEnvironment env;
     private TWAgent agent;
     private static final int maxDistance = Integer.MAX_VALUE;
     private TWPathGenerator pathGenerator;
+    /** Non null when goals are picked by path distance */
+    private TWDistanceField field;
+
+    /** The plan being followed, null if none */
+    private TWPath plan;
+    /** The object the plan leads to and its id when the plan was made */
+    private TWEntity goal;
+    private int goalId;
+    /** The step last executed, until the next plan is asked for */
+    private TWPathStep taken;
 
     public DefaultTWPlanner(TWEnvironment env, SimpleTWAgent agent){
         this.env = env;
         this.agent = agent;
         pathGenerator = new AstarPathGenerator(env, agent, maxDistance);
+        if (env.getConfiguration().getPlanner().equals(TWConfiguration.PLANNER_FIELD)) {
+            field = new TWDistanceField(env, agent);
+        }
     }
 
 
+    /**
+     * Returns the plan to follow from the agent's position: the current one
+     * if it is still good, otherwise a new one to the nearest wanted object,
+     * null if there is none or it cannot be reached.
+     */
     public TWPath generatePlan() {
-        TWPath path = null;
-        int agentX = agent.getX();
-        int agentY = agent.getY();
-        TWEntity tile = agent.getMemory().getSharedMemory().getClosestObject(agent, TWTile.class);
-        TWEntity hole = agent.getMemory().getSharedMemory().getClosestObject(agent, TWHole.class);
+        if (plan != null && taken != null && taken.getX() == agent.getX() && taken.getY() == agent.getY()) {
+            // the move failed, e.g. into a cell another agent stood in, try again
+            plan.getpath().addFirst(taken);
+        }
+        taken = null;
+        if (field != null) {
+            return generateFieldPlan();
+        }
 
+        TWEntity target = null;
+        TWEntity tile = agent.getMemory().getSharedMemory().getClosestObject(agent, TWTile.class);
         if (tile != null && agent.carriedNumber() <3){
-            path = pathGenerator.findPath(agentX, agentY, tile.getX(), tile.getY());
-        }else if(hole != null && agent.hasTile()){
-            path = pathGenerator.findPath(agentX, agentY, hole.getX(), hole.getY());
+            target = tile;
+        }else if(agent.hasTile()){
+            target = agent.getMemory().getSharedMemory().getClosestObject(agent, TWHole.class);
         }
 
-        return path;
+        if (target == null) {
+            voidPlan();
+            return null;
+        }
+        if (isPlanValid() && target.getClass() == goal.getClass() && !isCloser(target, goal.getDistanceTo(agent))) {
+            return plan;
+        }
+        plan = pathGenerator.findPath(agent.getX(), agent.getY(), target.getX(), target.getY());
+        if (plan == null) {
+            goal = null;
+        } else {
+            goal = target;
+            goalId = target.getId();
+        }
+        return plan;
 //        throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * As generatePlan, the goal being the wanted object nearest by path
+     * rather than Manhattan distance: one flood from the agent finds it and
+     * the path to it. The flood goes as far as the agent's fuel lasts.
+     */
+    private TWPath generateFieldPlan() {
+        TWAgentWorkingMemorySingleton memory = agent.getMemory().getSharedMemory();
+        TWEntity tile = (agent.carriedNumber() < 3) ? memory.getClosestObject(agent, TWTile.class) : null;
+        TWEntity hole = agent.hasTile() ? memory.getClosestObject(agent, TWHole.class) : null;
+        if (tile == null && hole == null) {
+            voidPlan();
+            return null;
+        }
+        if (isPlanValid() && ((goal instanceof TWTile) ? tile != null : hole != null)) {
+            // what is nearer by path is nearer by Manhattan distance too
+            int left = plan.getpath().size();
+            if (!isCloser(tile, left) && !isCloser(hole, left)) {
+                return plan;
+            }
+        }
+
+        // tiles come first, holes are only looked for if no tile is reached
+        field.compute(agent.getX(), agent.getY(), (int) agent.getFuelLevel(),
+                (tile != null) ? TWCellPlanes.TILE : TWCellPlanes.HOLE);
+        int cell = (tile != null) ? field.getNearest(TWCellPlanes.TILE) : -1;
+        if (cell < 0 && hole != null) {
+            cell = field.getNearest(TWCellPlanes.HOLE);
+        }
+        if (cell < 0) {
+            voidPlan();
+            return null;
+        }
+        int x = env.cellX(cell);
+        int y = env.cellY(cell);
+        plan = field.getPath(x, y);
+        goal = (TWEntity) memory.getMemoryGrid().get(x, y);
+        goalId = goal.getId();
+        return plan;
+    }
+
+    /**
+     * Is candidate another object than the goal and less than distance away
+     * (Manhattan) from the agent?
+     */
+    private boolean isCloser(TWEntity candidate, double distance) {
+        return candidate != null && candidate != goal
+                && candidate.getDistanceTo(agent.getX(), agent.getY()) < distance;
+    }
+
+    /**
+     * Can the current plan still be followed to its goal?
+     */
+    private boolean isPlanValid() {
+        if (!hasPlan()) {
+            return false;
+        }
+        TWAgentWorkingMemorySingleton memory = agent.getMemory().getSharedMemory();
+        if (memory.getMemoryGrid().get(goal.getX(), goal.getY()) != goal
+                || memory.getPerceptId(goal.getX(), goal.getY()) != goalId) {
+            return false;
+        }
+        Iterator<TWPathStep> steps = plan.getpath().iterator();
+        TWPathStep next = steps.next();
+        if (next.getX() != agent.getX() || next.getY() != agent.getY()) {
+            return false;
+        }
+        // the first step is where the agent stands, the others and the goal
+        // are still to be entered
+        TWObstacleBitboard obstacles = memory.getObstacleBitboard();
+        while (steps.hasNext()) {
+            next = steps.next();
+            if (obstacles.get(next.getX(), next.getY())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean hasPlan() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return plan != null && plan.hasNext();
     }
 
     public void voidPlan() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        plan = null;
+        goal = null;
+        taken = null;
     }
 
+    /**
+     * @return the location of the object the current plan leads to, null if
+     * there is no plan
+     */
     public Int2D getCurrentGoal() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return (goal == null) ? null : new Int2D(goal.getX(), goal.getY());
     }
 
+    /**
+     * Takes the next step of the current plan.
+     *
+     * @return the direction to move in
+     * @throws IllegalStateException if there is no plan to execute
+     */
     public TWDirection execute() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if (!hasPlan()) {
+            throw new IllegalStateException("No plan to execute");
+        }
+        taken = plan.popNext();
+        return taken.getDirection();
     }
 
 }
-
@@ -0,0 +1,793 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+import tileworld.agent.TWAgent;
+import tileworld.environment.TWDirection;
+import tileworld.environment.TWEnvironment;
+import tileworld.environment.TWObstacleBitboard;
+
+/**
+ * HpaPathGenerator
+ *
+ * Description:
+ *
+ * Hierarchical path finding (HPA*, Botea, Mueller and Schaeffer, 2004) for
+ * the same 4-connected, unit cost moves as AstarPathGenerator, for grids so
+ * large that even a jump point search covers too much of them.
+ *
+ * The grid is cut into square clusters. Where two clusters meet, each run of
+ * cells free on both sides of the border is an entrance, crossed at one
+ * transition per spacing cells of the run (at the middle of each stretch).
+ * The cells either side of a transition are the nodes of an abstract graph,
+ * joined across the border by a step and, within a cluster, by the length of
+ * the shortest path between them that stays in the cluster. A query joins
+ * the start and goal to the nodes of their clusters, searches the abstract
+ * graph with A*, and then refines only the edges of the path found into
+ * steps, each by a search inside one cluster. Query time then grows with the
+ * number of clusters crossed, not with the cells of the map.
+ *
+ * Paths are at most spacing steps longer than a shortest path for every
+ * cluster border a shortest path crosses: it could cross at most spacing / 2
+ * cells along the same entrance from a transition, and walking there and
+ * back on the two sides of the border is possible as both are free. With a
+ * spacing of 1 every border cell is a transition and paths are shortest.
+ *
+ * The obstacles are compared with the copy kept from the last query, a word
+ * of the bitboard (64 cells) at a time; the clusters with a changed cell get
+ * their borders, nodes and in-cluster distances computed again before the
+ * query, and so do their neighbours across a border whose transitions
+ * changed. Everything else is kept.
+ *
+ * The abstract search state lives in flat arrays indexed by cell, stamped
+ * with a generation instead of cleared and shared per thread, see
+ * AstarPathGenerator. The graph is kept per generator, which must not be
+ * used by two threads at once.
+ */
+public class HpaPathGenerator implements TWPathGenerator {
+
+    /** Distance between cells with no path */
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+    private static final int[] NONE = new int[0];
+    /** Borders of a cluster, see computeBorders */
+    private static final int EAST = 1;
+    private static final int SOUTH = 2;
+
+    /** The map being searched */
+    private final TWEnvironment map;
+    /** Longest path, in steps, we're willing to find */
+    private final int maxSearchDistance;
+    /** Reference to this agent, for looking in memory */
+    private final TWAgent agent;
+    /** Obstacles to plan around, if null those in the agent's memory */
+    private final TWObstacleBitboard blocked;
+
+    private final int width;
+    private final int height;
+    private final int clusterSize;
+    private final int spacing;
+    private final int clustersX;
+    private final int clustersY;
+
+    /**
+     * A block of clusterSize x clusterSize cells (less at the right and
+     * bottom edges of the map).
+     */
+    private static final class Cluster {
+        int x0, y0, x1, y1;
+        /** Transitions on the east and south borders, as pairs of cells: this side, other side */
+        int[] eastPairs = NONE;
+        int[] southPairs = NONE;
+        /** Cells of the nodes in this cluster, ascending */
+        int[] nodes = NONE;
+        /** Per node, the cells across the border it is a transition to */
+        int[][] partners = new int[0][];
+        /** In-cluster distance between nodes i and j at i * nodes.length + j */
+        int[] distance = NONE;
+    }
+
+    private Cluster[] clusters;
+    /** The obstacles as they were at the end of the last query */
+    private TWObstacleBitboard known;
+    private long[] knownWords;
+    private TWObstacleBitboard obstacles;
+
+    /** Breadth first search within a cluster, indexed by cell in the cluster */
+    private final int[] localDistance;
+    private final int[] localParent;
+    private final int[] localQueue;
+    /** Obstacles of the cluster last searched, valid for the current query */
+    private final boolean[] localBlocked;
+    /** Cells a breadth first search can stop after reaching */
+    private final boolean[] localTarget;
+    private Cluster loaded;
+
+    /** Clusters whose borders, or nodes and distances, must be computed again */
+    private boolean[] dirty;
+    private boolean[] stale;
+    /** The clusters marked dirty and stale, in the order marked */
+    private int[] dirtyList;
+    private int dirtyCount;
+    private int[] staleList;
+    private int staleCount;
+    /** Node and partner cells packed in longs, see computeNodes */
+    private long[] links = new long[16];
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        int generation;
+        int[] seen = new int[0];
+        int[] closed;
+        int[] cost;
+        int[] total;
+        int[] parent;
+        int[] heapPosition;
+        int[] heap;
+    }
+
+    /**
+     * Abstract search state, bound to the thread's scratch for the duration
+     * of a query. A cell's cost, total, parent and heap position are valid
+     * only if seen[cell] == generation, it is closed if
+     * closed[cell] == generation.
+     */
+    private Scratch scratch;
+    private int generation;
+    private int[] seen;
+    private int[] closed;
+    private int[] cost;
+    private int[] total;
+    private int[] parent;
+    private int[] heapPosition;
+    private int[] heap;
+    private int heapSize;
+
+    /** The query's ends and their in-cluster distances to their clusters' nodes */
+    private int start;
+    private int goal;
+    private int[] startDistance = NONE;
+    private int[] goalDistance = NONE;
+    /** Start to goal inside their cluster if they share one, else INFINITY */
+    private int direct;
+
+    /**
+     * Create a path finder
+     *
+     * @param map The map to be searched
+     * @param agent The agent whose memory tells which cells are blocked
+     * @param maxSearchDistance The longest path, in steps, to look for
+     * @param clusterSize Side of the clusters in cells, e.g. 16
+     * @param spacing Cells of an entrance per transition, 1 for shortest
+     * paths
+     */
+    public HpaPathGenerator(TWEnvironment map, TWAgent agent, int maxSearchDistance, int clusterSize, int spacing) {
+        this(map, agent, null, maxSearchDistance, clusterSize, spacing);
+    }
+
+    /**
+     * Create a path finder around a set of obstacles, e.g., the real ones of
+     * the environment. The bitboard is read again at every query, so changes
+     * to it are picked up.
+     *
+     * @param map The map to be searched
+     * @param blocked The cells which can't be entered
+     * @param maxSearchDistance The longest path, in steps, to look for
+     * @param clusterSize Side of the clusters in cells, e.g. 16
+     * @param spacing Cells of an entrance per transition, 1 for shortest
+     * paths
+     */
+    public HpaPathGenerator(TWEnvironment map, TWObstacleBitboard blocked, int maxSearchDistance, int clusterSize, int spacing) {
+        this(map, null, blocked, maxSearchDistance, clusterSize, spacing);
+    }
+
+    private HpaPathGenerator(TWEnvironment map, TWAgent agent, TWObstacleBitboard blocked, int maxSearchDistance,
+            int clusterSize, int spacing) {
+        if (clusterSize < 2 || spacing < 1) {
+            throw new IllegalArgumentException("clusterSize must be at least 2 and spacing positive: "
+                    + clusterSize + ", " + spacing);
+        }
+        this.map = map;
+        this.agent = agent;
+        this.blocked = blocked;
+        this.maxSearchDistance = maxSearchDistance;
+        this.width = map.getxDimension();
+        this.height = map.getyDimension();
+        this.clusterSize = clusterSize;
+        this.spacing = spacing;
+        this.clustersX = (width + clusterSize - 1) / clusterSize;
+        this.clustersY = (height + clusterSize - 1) / clusterSize;
+        this.localDistance = new int[clusterSize * clusterSize];
+        this.localParent = new int[clusterSize * clusterSize];
+        this.localQueue = new int[clusterSize * clusterSize];
+        this.localBlocked = new boolean[clusterSize * clusterSize];
+        this.localTarget = new boolean[clusterSize * clusterSize];
+    }
+
+    /**
+     * @return the number of nodes of the abstract graph
+     */
+    public int getNodeCount() {
+        int n = 0;
+        if (clusters != null) {
+            for (Cluster c : clusters) {
+                n += c.nodes.length;
+            }
+        }
+        return n;
+    }
+
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        obstacles = (blocked != null) ? blocked
+                : agent.getMemory().getSharedMemory().getObstacleBitboard();
+        loaded = null;
+        try {
+            // if the destination is blocked, we can't get there
+            if (obstacles.get(tx, ty) || (sx == tx && sy == ty)) {
+                return null;
+            }
+            if (clusters == null || obstacles != known) {
+                build();
+            } else {
+                update();
+            }
+            start = sy * width + sx;
+            goal = ty * width + tx;
+            return search();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Builds the whole abstract graph.
+     */
+    private void build() {
+        clusters = new Cluster[clustersX * clustersY];
+        for (int cy = 0; cy < clustersY; cy++) {
+            for (int cx = 0; cx < clustersX; cx++) {
+                Cluster c = new Cluster();
+                c.x0 = cx * clusterSize;
+                c.y0 = cy * clusterSize;
+                c.x1 = Math.min(c.x0 + clusterSize, width) - 1;
+                c.y1 = Math.min(c.y0 + clusterSize, height) - 1;
+                clusters[cy * clustersX + cx] = c;
+            }
+        }
+        known = obstacles;
+        knownWords = new long[obstacles.getWordsPerRow() * height];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int w = 0; w < obstacles.getWordsPerRow(); w++, i++) {
+                knownWords[i] = obstacles.getWord(y, w);
+            }
+        }
+        dirty = new boolean[clusters.length];
+        stale = new boolean[clusters.length];
+        dirtyList = new int[clusters.length];
+        staleList = new int[clusters.length];
+        for (int i = 0; i < clusters.length; i++) {
+            computeBorders(i);
+        }
+        for (int i = 0; i < clusters.length; i++) {
+            computeNodes(i);
+        }
+    }
+
+    /**
+     * Finds the cells that changed since the last query and recomputes the
+     * clusters they are in and around.
+     */
+    private void update() {
+        dirtyCount = 0;
+        int wordsPerRow = obstacles.getWordsPerRow();
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int w = 0; w < wordsPerRow; w++, i++) {
+                long word = obstacles.getWord(y, w);
+                long bits = word ^ knownWords[i];
+                if (bits == 0) {
+                    continue;
+                }
+                knownWords[i] = word;
+                while (bits != 0) {
+                    int x = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    int c = (y / clusterSize) * clustersX + x / clusterSize;
+                    if (!dirty[c]) {
+                        dirty[c] = true;
+                        dirtyList[dirtyCount++] = c;
+                    }
+                }
+            }
+        }
+        staleCount = 0;
+        for (int k = 0; k < dirtyCount; k++) {
+            int c = dirtyList[k];
+            // the borders this cluster's cells lie on: its own east and
+            // south ones, and its west and north neighbours'
+            markStale(c);
+            updateBorders(c);
+            if (c % clustersX > 0) {
+                updateBorders(c - 1);
+            }
+            if (c >= clustersX) {
+                updateBorders(c - clustersX);
+            }
+        }
+        for (int k = 0; k < staleCount; k++) {
+            computeNodes(staleList[k]);
+            stale[staleList[k]] = false;
+        }
+        for (int k = 0; k < dirtyCount; k++) {
+            dirty[dirtyList[k]] = false;
+        }
+    }
+
+    /**
+     * Computes the borders of cluster c again, marking the clusters on both
+     * sides of a border whose transitions changed as stale.
+     */
+    private void updateBorders(int c) {
+        int borders = computeBorders(c);
+        if ((borders & EAST) != 0) {
+            markStale(c);
+            markStale(c + 1);
+        }
+        if ((borders & SOUTH) != 0) {
+            markStale(c);
+            markStale(c + clustersX);
+        }
+    }
+
+    private void markStale(int c) {
+        if (!stale[c]) {
+            stale[c] = true;
+            staleList[staleCount++] = c;
+        }
+    }
+
+    /**
+     * Finds the transitions on the east and south borders of cluster i.
+     *
+     * @return EAST and SOUTH or'ed for the borders whose transitions changed
+     */
+    private int computeBorders(int i) {
+        Cluster c = clusters[i];
+        int[] east = (c.x1 + 1 < width) ? transitions(c.x1, c.y0, 0, 1, c.y1 - c.y0 + 1, 1, 0) : NONE;
+        int[] south = (c.y1 + 1 < height) ? transitions(c.x0, c.y1, 1, 0, c.x1 - c.x0 + 1, 0, 1) : NONE;
+        int changed = (Arrays.equals(east, c.eastPairs) ? 0 : EAST) | (Arrays.equals(south, c.southPairs) ? 0 : SOUTH);
+        c.eastPairs = east;
+        c.southPairs = south;
+        return changed;
+    }
+
+    /**
+     * Walks length cells from x, y in steps of dx, dy, each facing the cell
+     * ox, oy away across the border, and returns the transitions of the
+     * runs free on both sides as pairs of cells.
+     */
+    private int[] transitions(int x, int y, int dx, int dy, int length, int ox, int oy) {
+        int[] pairs = new int[8];
+        int n = 0;
+        int run = 0;
+        for (int k = 0; k <= length; k++) {
+            int cx = x + k * dx;
+            int cy = y + k * dy;
+            boolean open = k < length && !obstacles.get(cx, cy) && !obstacles.get(cx + ox, cy + oy);
+            if (open) {
+                run++;
+                continue;
+            }
+            // a run of free pairs ended before k, one transition per
+            // spacing cells, in the middle of each stretch
+            for (int first = k - run; first < k; first += spacing) {
+                int last = Math.min(first + spacing, k) - 1;
+                int m = (first + last) / 2;
+                if (n + 2 > pairs.length) {
+                    pairs = Arrays.copyOf(pairs, 2 * pairs.length);
+                }
+                int mx = x + m * dx;
+                int my = y + m * dy;
+                pairs[n++] = my * width + mx;
+                pairs[n++] = (my + oy) * width + mx + ox;
+            }
+            run = 0;
+        }
+        return Arrays.copyOf(pairs, n);
+    }
+
+    /**
+     * Collects the nodes of cluster i from the transitions on its four
+     * borders and computes the in-cluster distances between them.
+     */
+    private void computeNodes(int i) {
+        Cluster c = clusters[i];
+        int cx = i % clustersX;
+        int cy = i / clustersX;
+        // (node cell, partner cell) pairs packed in longs, sorted by node
+        int n = addLinks(0, c.eastPairs, false);
+        n = addLinks(n, c.southPairs, false);
+        if (cx > 0) {
+            n = addLinks(n, clusters[i - 1].eastPairs, true);
+        }
+        if (cy > 0) {
+            n = addLinks(n, clusters[i - clustersX].southPairs, true);
+        }
+        long[] sorted = links;
+        Arrays.sort(sorted, 0, n);
+        int count = 0;
+        for (int k = 0; k < n; k++) {
+            if (k == 0 || (sorted[k] >>> 32) != (sorted[k - 1] >>> 32)) {
+                count++;
+            }
+        }
+        c.nodes = new int[count];
+        c.partners = new int[count][];
+        for (int k = 0, node = -1; k < n; k++) {
+            int cell = (int) (sorted[k] >>> 32);
+            if (node < 0 || c.nodes[node] != cell) {
+                node++;
+                c.nodes[node] = cell;
+                c.partners[node] = NONE;
+            }
+            int[] p = c.partners[node];
+            c.partners[node] = Arrays.copyOf(p, p.length + 1);
+            c.partners[node][p.length] = (int) sorted[k];
+        }
+
+        // distances are symmetric, from each node only those to the nodes
+        // after it are searched for
+        c.distance = new int[count * count];
+        int w = c.x1 - c.x0 + 1;
+        for (int b = 0; b < count; b++) {
+            localTarget[(c.nodes[b] / width - c.y0) * w + c.nodes[b] % width - c.x0] = true;
+        }
+        for (int a = 0; a < count; a++) {
+            localTarget[(c.nodes[a] / width - c.y0) * w + c.nodes[a] % width - c.x0] = false;
+            if (a < count - 1) {
+                clusterSearch(c, c.nodes[a], count - 1 - a);
+            }
+            for (int b = a + 1; b < count; b++) {
+                c.distance[a * count + b] = distanceTo(c, c.nodes[b]);
+                c.distance[b * count + a] = c.distance[a * count + b];
+            }
+        }
+    }
+
+    /**
+     * Appends the transitions of pairs to links from n on, the node being
+     * the second cell of each pair if across.
+     *
+     * @return the number of links after
+     */
+    private int addLinks(int n, int[] pairs, boolean across) {
+        if (n + pairs.length / 2 > links.length) {
+            links = Arrays.copyOf(links, Math.max(2 * links.length, n + pairs.length / 2));
+        }
+        for (int k = 0; k < pairs.length; k += 2) {
+            int node = across ? pairs[k + 1] : pairs[k];
+            int partner = across ? pairs[k] : pairs[k + 1];
+            links[n++] = ((long) node << 32) | partner;
+        }
+        return n;
+    }
+
+    /**
+     * Breadth first search from source over the free cells of cluster c,
+     * leaving source even if it is blocked.
+     */
+    private void clusterSearch(Cluster c, int source) {
+        clusterSearch(c, source, -1);
+    }
+
+    /**
+     * Breadth first search from source over the free cells of cluster c,
+     * leaving source even if it is blocked, until the cells marked in
+     * localTarget have all been reached.
+     *
+     * @param targets the number of cells marked, -1 to search the whole
+     * cluster
+     */
+    private void clusterSearch(Cluster c, int source, int targets) {
+        int w = c.x1 - c.x0 + 1;
+        int h = c.y1 - c.y0 + 1;
+        if (c != loaded) {
+            for (int ly = 0, k = 0; ly < h; ly++) {
+                for (int lx = 0; lx < w; lx++, k++) {
+                    localBlocked[k] = obstacles.get(c.x0 + lx, c.y0 + ly);
+                }
+            }
+            loaded = c;
+        }
+        Arrays.fill(localDistance, 0, w * h, -1);
+        int s = (source / width - c.y0) * w + source % width - c.x0;
+        localDistance[s] = 0;
+        localParent[s] = -1;
+        int head = 0;
+        int tail = 0;
+        localQueue[tail++] = s;
+        while (head < tail && targets != 0) {
+            int current = localQueue[head++];
+            int lx = current % w;
+            int ly = current / w;
+            // neighbours in the order AstarPathGenerator visits them
+            for (int k = 0; k < 4; k++) {
+                int next;
+                if (k == 0) {
+                    next = (lx > 0) ? current - 1 : -1;
+                } else if (k == 1) {
+                    next = (ly > 0) ? current - w : -1;
+                } else if (k == 2) {
+                    next = (ly < h - 1) ? current + w : -1;
+                } else {
+                    next = (lx < w - 1) ? current + 1 : -1;
+                }
+                if (next < 0 || localDistance[next] >= 0 || localBlocked[next]) {
+                    continue;
+                }
+                localDistance[next] = localDistance[current] + 1;
+                localParent[next] = current;
+                localQueue[tail++] = next;
+                if (localTarget[next]) {
+                    targets--;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the distance found by the last clusterSearch to cell, which
+     * must be in c, INFINITY if not reached
+     */
+    private int distanceTo(Cluster c, int cell) {
+        int d = localDistance[(cell / width - c.y0) * (c.x1 - c.x0 + 1) + cell % width - c.x0];
+        return (d < 0) ? INFINITY : d;
+    }
+
+    private Cluster clusterOf(int cell) {
+        return clusters[(cell / width / clusterSize) * clustersX + (cell % width) / clusterSize];
+    }
+
+    /**
+     * A* over the abstract graph from start to goal, then refinement of the
+     * abstract path into steps.
+     */
+    private TWPath search() {
+        Cluster startCluster = clusterOf(start);
+        Cluster goalCluster = clusterOf(goal);
+        clusterSearch(goalCluster, goal);
+        goalDistance = new int[goalCluster.nodes.length];
+        for (int k = 0; k < goalDistance.length; k++) {
+            goalDistance[k] = distanceTo(goalCluster, goalCluster.nodes[k]);
+        }
+        clusterSearch(startCluster, start);
+        startDistance = new int[startCluster.nodes.length];
+        for (int k = 0; k < startDistance.length; k++) {
+            startDistance[k] = distanceTo(startCluster, startCluster.nodes[k]);
+        }
+        direct = (startCluster == goalCluster) ? distanceTo(startCluster, goal) : INFINITY;
+
+        newSearch();
+        visit(start, 0, -1);
+        push(start);
+        while (heapSize != 0) {
+            int current = heap[0];
+            if (current == goal) {
+                return refine();
+            }
+            pop();
+            closed[current] = generation;
+            Cluster c = clusterOf(current);
+            int index = Arrays.binarySearch(c.nodes, current);
+            if (current == start) {
+                for (int k = 0; k < startDistance.length; k++) {
+                    relax(current, c.nodes[k], startDistance[k]);
+                }
+                relax(current, goal, direct);
+            } else if (index >= 0) {
+                int n = c.nodes.length;
+                for (int k = 0; k < n; k++) {
+                    relax(current, c.nodes[k], c.distance[index * n + k]);
+                }
+            }
+            if (index >= 0) {
+                for (int partner : c.partners[index]) {
+                    relax(current, partner, 1);
+                }
+                if (c == goalCluster) {
+                    relax(current, goal, goalDistance[index]);
+                }
+            }
+        }
+        // empty open list, there is no path
+        return null;
+    }
+
+    private void relax(int from, int to, int length) {
+        if (length >= INFINITY || to == from) {
+            return;
+        }
+        int g = cost[from] + length;
+        if (g > maxSearchDistance) {
+            return;
+        }
+        if (seen[to] == generation) {
+            if (g >= cost[to]) {
+                return;
+            }
+            if (heapPosition[to] >= 0) {
+                visit(to, g, from);
+                siftUp(heapPosition[to]);
+                return;
+            }
+            closed[to] = 0;
+        }
+        visit(to, g, from);
+        heapPosition[to] = -1;
+        push(to);
+    }
+
+    /**
+     * Turns the abstract path ending at goal into steps: a step across each
+     * border, a search inside the cluster for each other edge.
+     */
+    private TWPath refine() {
+        int hops = 0;
+        for (int node = goal; node != start; node = parent[node]) {
+            hops++;
+        }
+        int[] abstractPath = new int[hops + 1];
+        abstractPath[hops] = goal;
+        for (int k = hops; k > 0; k--) {
+            abstractPath[k - 1] = parent[abstractPath[k]];
+        }
+        TWPath path = new TWPath(goal % width, goal / width);
+        int[] cells = new int[clusterSize * clusterSize];
+        for (int k = 0; k < hops; k++) {
+            int from = abstractPath[k];
+            int to = abstractPath[k + 1];
+            Cluster c = clusterOf(from);
+            if (c != clusterOf(to)) {
+                path.appendStep(new TWPathStep(from % width, from / width, direction(from, to)));
+                continue;
+            }
+            // walk back from to along the search tree of from
+            clusterSearch(c, from);
+            int w = c.x1 - c.x0 + 1;
+            int n = 0;
+            for (int local = (to / width - c.y0) * w + to % width - c.x0; local >= 0; local = localParent[local]) {
+                cells[n++] = (c.y0 + local / w) * width + c.x0 + local % w;
+            }
+            for (int m = n - 1; m > 0; m--) {
+                path.appendStep(new TWPathStep(cells[m] % width, cells[m] / width, direction(cells[m], cells[m - 1])));
+            }
+        }
+        return path;
+    }
+
+    private TWDirection direction(int from, int to) {
+        if (to == from + 1) {
+            return TWDirection.E;
+        } else if (to == from - 1) {
+            return TWDirection.W;
+        } else if (to > from) {
+            return TWDirection.S;
+        }
+        return TWDirection.N;
+    }
+
+    /**
+     * Starts a new generation in the thread's scratch, growing it to this
+     * map first if needed.
+     */
+    private void newSearch() {
+        scratch = SCRATCH.get();
+        int cells = width * height;
+        if (scratch.seen.length < cells) {
+            scratch.seen = new int[cells];
+            scratch.closed = new int[cells];
+            scratch.cost = new int[cells];
+            scratch.total = new int[cells];
+            scratch.parent = new int[cells];
+            scratch.heapPosition = new int[cells];
+            scratch.heap = new int[cells];
+        }
+        if (++scratch.generation == Integer.MAX_VALUE) {
+            Arrays.fill(scratch.seen, 0);
+            Arrays.fill(scratch.closed, 0);
+            scratch.generation = 1;
+        }
+        generation = scratch.generation;
+        seen = scratch.seen;
+        closed = scratch.closed;
+        cost = scratch.cost;
+        total = scratch.total;
+        parent = scratch.parent;
+        heapPosition = scratch.heapPosition;
+        heap = scratch.heap;
+        heapSize = 0;
+    }
+
+    /**
+     * Unbinds the scratch, which belongs to the thread, not this generator.
+     */
+    private void release() {
+        scratch = null;
+        seen = null;
+        closed = null;
+        cost = null;
+        total = null;
+        parent = null;
+        heapPosition = null;
+        heap = null;
+        obstacles = null;
+    }
+
+    private void visit(int cell, int g, int previous) {
+        seen[cell] = generation;
+        cost[cell] = g;
+        total[cell] = g + Math.abs(goal % width - cell % width) + Math.abs(goal / width - cell / width);
+        parent[cell] = previous;
+    }
+
+    /**
+     * @return true if a comes before b in the open list, of equal totals the
+     * one further along
+     */
+    private boolean before(int a, int b) {
+        return total[a] < total[b] || (total[a] == total[b] && cost[a] > cost[b]);
+    }
+
+    private void push(int cell) {
+        heap[heapSize] = cell;
+        heapPosition[cell] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private void pop() {
+        heapPosition[heap[0]] = -1;
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            heapPosition[last] = 0;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        int cell = heap[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (!before(cell, heap[p])) {
+                break;
+            }
+            heap[i] = heap[p];
+            heapPosition[heap[i]] = i;
+            i = p;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+
+    private void siftDown(int i) {
+        int cell = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < heapSize && before(heap[c + 1], heap[c])) {
+                c++;
+            }
+            if (!before(heap[c], cell)) {
+                break;
+            }
+            heap[i] = heap[c];
+            heapPosition[heap[i]] = i;
+            i = c;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+}
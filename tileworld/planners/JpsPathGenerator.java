@@ -0,0 +1,466 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+import tileworld.agent.TWAgent;
+import tileworld.environment.TWEnvironment;
+import tileworld.environment.TWObstacleBitboard;
+
+/**
+ * JpsPathGenerator
+ *
+ * Description:
+ *
+ * Jump point search for grids where, as in AstarPathGenerator, agents move
+ * to the four neighbours only, one step costing one. It finds paths as
+ * short as A* does while putting far fewer cells in the open list.
+ *
+ * Of the many shortest paths on an open grid only one is considered: the one
+ * turning as late as possible, vertical moves before horizontal ones unless
+ * an obstacle forces otherwise. Moving horizontally the search only stops
+ * (at a jump point) where an obstacle above or below ends, as only there may
+ * a shortest path have to turn. Moving vertically it stops at a cell from
+ * which a horizontal scan would stop, or that is the goal. Only jump points
+ * go in the open list; the cells between them are filled in when the path
+ * is built.
+ *
+ * Horizontal scans test 64 cells at a time on the obstacle bitboard: the
+ * ends of obstacles above and below a row are found by shifting the words
+ * of the neighbouring rows by one cell.
+ *
+ * The search state lives in flat arrays indexed by cell (y * width + x),
+ * stamped with a generation instead of cleared, and is shared by all
+ * generators searching on the same thread, see AstarPathGenerator.
+ */
+public class JpsPathGenerator implements TWPathGenerator {
+
+    /** Directions a jump point is reached from */
+    private static final byte START = 0;
+    private static final byte EAST = 1;
+    private static final byte WEST = 2;
+    private static final byte SOUTH = 3;
+    private static final byte NORTH = 4;
+
+    /** The map being searched */
+    private final TWEnvironment map;
+    /** Longest path, in steps, we're willing to find */
+    private final int maxSearchDistance;
+    /** Reference to this agent, for looking in memory */
+    private final TWAgent agent;
+    /** Obstacles to plan around, if null those in the agent's memory */
+    private final TWObstacleBitboard blocked;
+
+    private final int width;
+    private final int height;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        int generation;
+        int[] seen = new int[0];
+        int[] closed;
+        int[] cost;
+        int[] total;
+        int[] parent;
+        byte[] from;
+        int[] heapPosition;
+        int[] heap;
+    }
+
+    /**
+     * Search state, bound to the thread's scratch for the duration of a
+     * search. A cell's cost, total, parent, from and heap position are valid
+     * only if seen[cell] == generation, it is closed if
+     * closed[cell] == generation.
+     */
+    private Scratch scratch;
+    private int generation;
+    private int[] seen;
+    private int[] closed;
+    private int[] cost;
+    /** cost + Manhattan distance to the goal, the heap key */
+    private int[] total;
+    private int[] parent;
+    /** Direction the jump point was reached moving in */
+    private byte[] from;
+    private int[] heapPosition;
+    private int[] heap;
+    private int heapSize;
+
+    /** The search's obstacles and goal */
+    private TWObstacleBitboard obstacles;
+    private int goalX;
+    private int goalY;
+
+    /**
+     * Create a path finder
+     *
+     * @param map The map to be searched
+     * @param agent The agent whose memory tells which cells are blocked
+     * @param maxSearchDistance The longest path, in steps, to look for
+     */
+    public JpsPathGenerator(TWEnvironment map, TWAgent agent, int maxSearchDistance) {
+        this(map, agent, null, maxSearchDistance);
+    }
+
+    /**
+     * Create a path finder around a fixed set of obstacles, e.g., the real
+     * ones of the environment.
+     *
+     * @param map The map to be searched
+     * @param blocked The cells which can't be entered
+     * @param maxSearchDistance The longest path, in steps, to look for
+     */
+    public JpsPathGenerator(TWEnvironment map, TWObstacleBitboard blocked, int maxSearchDistance) {
+        this(map, null, blocked, maxSearchDistance);
+    }
+
+    private JpsPathGenerator(TWEnvironment map, TWAgent agent, TWObstacleBitboard blocked, int maxSearchDistance) {
+        this.map = map;
+        this.agent = agent;
+        this.blocked = blocked;
+        this.maxSearchDistance = maxSearchDistance;
+        this.width = map.getxDimension();
+        this.height = map.getyDimension();
+    }
+
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        obstacles = (blocked != null) ? blocked
+                : agent.getMemory().getSharedMemory().getObstacleBitboard();
+        try {
+            return search(sx, sy, tx, ty);
+        } finally {
+            release();
+        }
+    }
+
+    private TWPath search(int sx, int sy, int tx, int ty) {
+        // if the destination is blocked, we can't get there
+        if (obstacles.get(tx, ty) || (sx == tx && sy == ty)) {
+            return null;
+        }
+        goalX = tx;
+        goalY = ty;
+        newSearch();
+        int start = sy * width + sx;
+        int target = ty * width + tx;
+        visit(start, 0, -1, START);
+        push(start);
+
+        while (heapSize != 0) {
+            int current = heap[0];
+            if (current == target) {
+                return buildPath(start, target);
+            }
+            pop();
+            closed[current] = generation;
+
+            int x = current % width;
+            int y = current / width;
+            byte direction = from[current];
+            if (direction == START || direction == NORTH || direction == SOUTH) {
+                // horizontal moves are natural after vertical ones
+                addSuccessor(current, jumpEast(x, y), y);
+                addSuccessor(current, jumpWest(x, y), y);
+                if (direction != SOUTH) {
+                    addSuccessor(current, x, jumpVertical(x, y, -1));
+                }
+                if (direction != NORTH) {
+                    addSuccessor(current, x, jumpVertical(x, y, 1));
+                }
+            } else {
+                int dx = (direction == EAST) ? 1 : -1;
+                addSuccessor(current, (dx == 1) ? jumpEast(x, y) : jumpWest(x, y), y);
+                // turning is only needed where an obstacle above or below ends
+                if (isBlocked(x - dx, y - 1) && !isBlocked(x, y - 1)) {
+                    addSuccessor(current, x, jumpVertical(x, y, -1));
+                }
+                if (isBlocked(x - dx, y + 1) && !isBlocked(x, y + 1)) {
+                    addSuccessor(current, x, jumpVertical(x, y, 1));
+                }
+            }
+        }
+        // empty open list, there is no path
+        return null;
+    }
+
+    /**
+     * Puts jump point x, y, reached in a straight line from current, in the
+     * open list unless it is no better than before. x or y is -1 if the jump
+     * found nothing.
+     */
+    private void addSuccessor(int current, int x, int y) {
+        if (x < 0 || y < 0) {
+            return;
+        }
+        int cx = current % width;
+        int cy = current / width;
+        int g = cost[current] + Math.abs(x - cx) + Math.abs(y - cy);
+        if (g > maxSearchDistance) {
+            return;
+        }
+        byte direction = (x > cx) ? EAST : (x < cx) ? WEST : (y > cy) ? SOUTH : NORTH;
+        int cell = y * width + x;
+        if (seen[cell] == generation) {
+            if (g >= cost[cell]) {
+                return;
+            }
+            if (heapPosition[cell] >= 0) {
+                visit(cell, g, current, direction);
+                siftUp(heapPosition[cell]);
+                return;
+            }
+            closed[cell] = 0;
+        }
+        visit(cell, g, current, direction);
+        heapPosition[cell] = -1;
+        push(cell);
+    }
+
+    /**
+     * @return the first jump point east of x on row y, its x, or -1 if an
+     * obstacle or the edge comes first
+     */
+    private int jumpEast(int x, int y) {
+        int first = x + 1;
+        if (first >= width) {
+            return -1;
+        }
+        int wall = obstacles.nextObstacleEast(first, y);
+        int last = ((wall < 0) ? width : wall) - 1;
+        if (last < first) {
+            return -1;
+        }
+        int found = (goalY == y && goalX >= first && goalX <= last) ? goalX : Integer.MAX_VALUE;
+        for (int w = first >>> 6; w <= last >>> 6 && (w << 6) < found; w++) {
+            long ends = obstacleEndsEast(y - 1, w) | obstacleEndsEast(y + 1, w);
+            ends &= (-1L << Math.max(first - (w << 6), 0));
+            if (last - (w << 6) < 63) {
+                ends &= -1L >>> (63 - (last - (w << 6)));
+            }
+            if (ends != 0) {
+                found = Math.min(found, (w << 6) + Long.numberOfTrailingZeros(ends));
+                break;
+            }
+        }
+        return (found == Integer.MAX_VALUE) ? -1 : found;
+    }
+
+    /**
+     * @return the first jump point west of x on row y, its x, or -1 if an
+     * obstacle or the edge comes first
+     */
+    private int jumpWest(int x, int y) {
+        int first = x - 1;
+        if (first < 0) {
+            return -1;
+        }
+        int last = obstacles.nextObstacleWest(first, y) + 1;
+        if (last > first) {
+            return -1;
+        }
+        int found = (goalY == y && goalX <= first && goalX >= last) ? goalX : -1;
+        for (int w = first >>> 6; w >= last >>> 6 && (w << 6) + 63 > found; w--) {
+            long ends = obstacleEndsWest(y - 1, w) | obstacleEndsWest(y + 1, w);
+            ends &= -1L >>> (63 - Math.min(first - (w << 6), 63));
+            if (last > (w << 6)) {
+                ends &= -1L << (last - (w << 6));
+            }
+            if (ends != 0) {
+                found = Math.max(found, (w << 6) + 63 - Long.numberOfLeadingZeros(ends));
+                break;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Bit i set if cell w * 64 + i of row r is free and the cell west of it
+     * an obstacle, i.e. moving east an obstacle on row r ends there.
+     */
+    private long obstacleEndsEast(int r, int w) {
+        if (r < 0 || r >= height) {
+            return 0;
+        }
+        long here = obstacles.getWord(r, w);
+        long west = (here << 1) | ((w > 0) ? obstacles.getWord(r, w - 1) >>> 63 : 0);
+        return west & ~here;
+    }
+
+    /**
+     * Bit i set if cell w * 64 + i of row r is free and the cell east of it
+     * an obstacle. Cells past the width read as free, so are never ends.
+     */
+    private long obstacleEndsWest(int r, int w) {
+        if (r < 0 || r >= height) {
+            return 0;
+        }
+        long here = obstacles.getWord(r, w);
+        long east = (here >>> 1) | ((w + 1 < obstacles.getWordsPerRow()) ? obstacles.getWord(r, w + 1) << 63 : 0);
+        return east & ~here;
+    }
+
+    /**
+     * @return the y of the first jump point from x, y moving dy (1 south, -1
+     * north), or -1 if an obstacle or the edge comes first
+     */
+    private int jumpVertical(int x, int y, int dy) {
+        for (y += dy; y >= 0 && y < height && !obstacles.get(x, y); y += dy) {
+            if ((x == goalX && y == goalY) || jumpEast(x, y) >= 0 || jumpWest(x, y) >= 0) {
+                return y;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isBlocked(int x, int y) {
+        return !map.isInBounds(x, y) || obstacles.get(x, y);
+    }
+
+    /**
+     * Walks back from target through the jump points, filling in the cells
+     * between them.
+     */
+    private TWPath buildPath(int start, int target) {
+        TWPath path = new TWPath(target % width, target / width);
+        int x = target % width;
+        int y = target / width;
+        //skip the goal as the step before will tell us how to get there.
+        for (int node = target; node != start; node = parent[node]) {
+            int px = parent[node] % width;
+            int py = parent[node] / width;
+            int dx = Integer.signum(px - x);
+            int dy = Integer.signum(py - y);
+            do {
+                x += dx;
+                y += dy;
+                if (x != px || y != py || parent[node] != start) {
+                    path.prependStep(x, y);
+                }
+            } while (x != px || y != py);
+        }
+        //in our type of plan we don't include current location.
+        path.prependStep(start % width, start / width);
+        return path;
+    }
+
+    /**
+     * Starts a new generation in the thread's scratch, growing it to this
+     * map first if needed.
+     */
+    private void newSearch() {
+        scratch = SCRATCH.get();
+        int cells = width * height;
+        if (scratch.seen.length < cells) {
+            scratch.seen = new int[cells];
+            scratch.closed = new int[cells];
+            scratch.cost = new int[cells];
+            scratch.total = new int[cells];
+            scratch.parent = new int[cells];
+            scratch.from = new byte[cells];
+            scratch.heapPosition = new int[cells];
+            scratch.heap = new int[cells];
+        }
+        if (++scratch.generation == Integer.MAX_VALUE) {
+            Arrays.fill(scratch.seen, 0);
+            Arrays.fill(scratch.closed, 0);
+            scratch.generation = 1;
+        }
+        generation = scratch.generation;
+        seen = scratch.seen;
+        closed = scratch.closed;
+        cost = scratch.cost;
+        total = scratch.total;
+        parent = scratch.parent;
+        from = scratch.from;
+        heapPosition = scratch.heapPosition;
+        heap = scratch.heap;
+        heapSize = 0;
+    }
+
+    /**
+     * Unbinds the scratch, which belongs to the thread, not this generator.
+     */
+    private void release() {
+        scratch = null;
+        seen = null;
+        closed = null;
+        cost = null;
+        total = null;
+        parent = null;
+        from = null;
+        heapPosition = null;
+        heap = null;
+        obstacles = null;
+    }
+
+    private void visit(int cell, int g, int previous, byte direction) {
+        seen[cell] = generation;
+        cost[cell] = g;
+        total[cell] = g + Math.abs(goalX - cell % width) + Math.abs(goalY - cell / width);
+        parent[cell] = previous;
+        from[cell] = direction;
+    }
+
+    /**
+     * @return true if a comes before b in the open list, of equal totals the
+     * one further along
+     */
+    private boolean before(int a, int b) {
+        return total[a] < total[b] || (total[a] == total[b] && cost[a] > cost[b]);
+    }
+
+    private void push(int cell) {
+        heap[heapSize] = cell;
+        heapPosition[cell] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private void pop() {
+        heapPosition[heap[0]] = -1;
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            heapPosition[last] = 0;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        int cell = heap[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (!before(cell, heap[p])) {
+                break;
+            }
+            heap[i] = heap[p];
+            heapPosition[heap[i]] = i;
+            i = p;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+
+    private void siftDown(int i) {
+        int cell = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < heapSize && before(heap[c + 1], heap[c])) {
+                c++;
+            }
+            if (!before(heap[c], cell)) {
+                break;
+            }
+            heap[i] = heap[c];
+            heapPosition[heap[i]] = i;
+            i = c;
+        }
+        heap[i] = cell;
+        heapPosition[cell] = i;
+    }
+}
@@ -0,0 +1,203 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+import sim.field.grid.ObjectGrid2D;
+import tileworld.agent.TWAgent;
+import tileworld.environment.TWCellPlanes;
+import tileworld.environment.TWEnvironment;
+import tileworld.environment.TWObstacleBitboard;
+
+/**
+ * TWDistanceField
+ *
+ * Description:
+ *
+ * Path distances from one cell to every cell reachable from it, by a
+ * breadth first flood over the agent's memory: moves are to the four
+ * neighbours, one step each, and remembered obstacles can't be entered.
+ * While flooding it notes the nearest remembered tile, hole and fuel
+ * station by path distance, so one flood answers "which is nearest" for all
+ * of them and a path to any reached cell is read back from it, with no
+ * further search.
+ *
+ * The flood stops at a given distance, e.g. the agent's fuel, or once the
+ * nearest object of a given type is found, so its cost is linear in the
+ * cells within that distance at most.
+ *
+ * As for AstarPathGenerator the state lives in flat arrays indexed by cell
+ * (y * width + x), stamped with a generation instead of cleared, and is
+ * shared by all fields on the same thread: a field's results are valid until
+ * the next compute() of any field on that thread.
+ */
+public class TWDistanceField {
+
+    /** Distance of cells not reached */
+    public static final int UNREACHED = -1;
+
+    private final TWEnvironment map;
+    private final TWAgent agent;
+    private final int width;
+    private final int height;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        int generation;
+        int[] seen = new int[0];
+        int[] distance;
+        int[] parent;
+        int[] queue;
+    }
+
+    /**
+     * The thread's scratch as bound by the last compute(), a cell's distance
+     * and parent are valid only if seen[cell] == generation.
+     */
+    private Scratch scratch;
+    private int generation;
+    private int start = -1;
+    /** Nearest cell of each TWCellPlanes type, -1 if none was reached */
+    private final int[] nearest = new int[TWCellPlanes.FUEL_STATION + 1];
+
+    /**
+     * @param map the environment whose grid is flooded
+     * @param agent the agent whose memory tells what is where
+     */
+    public TWDistanceField(TWEnvironment map, TWAgent agent) {
+        this.map = map;
+        this.agent = agent;
+        this.width = map.getxDimension();
+        this.height = map.getyDimension();
+    }
+
+    /**
+     * Floods from sx, sy to the cells at most maxDistance steps away.
+     */
+    public void compute(int sx, int sy, int maxDistance) {
+        compute(sx, sy, maxDistance, TWCellPlanes.EMPTY);
+    }
+
+    /**
+     * Floods from sx, sy to the cells at most maxDistance steps away, or
+     * until the nearest object of type stopAt is reached. Objects of other
+     * types are noted as far as the flood went.
+     *
+     * @param stopAt a TWCellPlanes type, EMPTY to flood all the way
+     */
+    public void compute(int sx, int sy, int maxDistance, byte stopAt) {
+        TWObstacleBitboard obstacles = agent.getMemory().getSharedMemory().getObstacleBitboard();
+        ObjectGrid2D memoryGrid = agent.getMemory().getSharedMemory().getMemoryGrid();
+        newFlood();
+        Arrays.fill(nearest, -1);
+        int[] seen = scratch.seen;
+        int[] distance = scratch.distance;
+        int[] parent = scratch.parent;
+        int[] queue = scratch.queue;
+
+        start = sy * width + sx;
+        seen[start] = generation;
+        distance[start] = 0;
+        parent[start] = -1;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        flood:
+        while (head < tail) {
+            int current = queue[head++];
+            int d = distance[current] + 1;
+            if (d > maxDistance) {
+                // breadth first, all that is left is as far
+                break;
+            }
+            int cx = current % width;
+            int cy = current / width;
+            // neighbours in the order AstarPathGenerator visits them
+            for (int k = 0; k < 4; k++) {
+                int x = cx + ((k == 0) ? -1 : (k == 3) ? 1 : 0);
+                int y = cy + ((k == 1) ? -1 : (k == 2) ? 1 : 0);
+                if (!map.isInBounds(x, y) || obstacles.get(x, y)) {
+                    continue;
+                }
+                int cell = y * width + x;
+                if (seen[cell] == generation) {
+                    continue;
+                }
+                seen[cell] = generation;
+                distance[cell] = d;
+                parent[cell] = current;
+                queue[tail++] = cell;
+                byte type = TWCellPlanes.typeOf(memoryGrid.get(x, y));
+                if (type != TWCellPlanes.EMPTY && nearest[type] < 0) {
+                    nearest[type] = cell;
+                    if (type == stopAt) {
+                        break flood;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of steps from the flood's start to x, y or
+     * UNREACHED
+     */
+    public int getDistance(int x, int y) {
+        int cell = y * width + x;
+        return (scratch != null && scratch.seen[cell] == generation) ? scratch.distance[cell] : UNREACHED;
+    }
+
+    /**
+     * @param type a TWCellPlanes type, TILE, HOLE or FUEL_STATION
+     * @return the cell (y * width + x) of the remembered object of the given
+     * type nearest by path, -1 if none was reached
+     */
+    public int getNearest(byte type) {
+        return nearest[type];
+    }
+
+    /**
+     * @return the path from the flood's start to x, y, null if x, y was not
+     * reached or is the start
+     */
+    public TWPath getPath(int x, int y) {
+        int target = y * width + x;
+        if (getDistance(x, y) <= 0) {
+            return null;
+        }
+        int[] parent = scratch.parent;
+        TWPath path = new TWPath(x, y);
+        //skip the goal as the step before will tell us how to get there.
+        int step = parent[target];
+        while (step != start) {
+            path.prependStep(step % width, step / width);
+            step = parent[step];
+        }
+        path.prependStep(start % width, start / width);
+        return path;
+    }
+
+    /**
+     * Starts a new generation in the thread's scratch, growing it to this
+     * map first if needed.
+     */
+    private void newFlood() {
+        scratch = SCRATCH.get();
+        int cells = width * height;
+        if (scratch.seen.length < cells) {
+            scratch.seen = new int[cells];
+            scratch.distance = new int[cells];
+            scratch.parent = new int[cells];
+            scratch.queue = new int[cells];
+        }
+        if (++scratch.generation == Integer.MAX_VALUE) {
+            Arrays.fill(scratch.seen, 0);
+            scratch.generation = 1;
+        }
+        generation = scratch.generation;
+    }
+}